@@ -0,0 +1,153 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
+import org.semanticweb.owlapi.model.OWLObjectSomeValuesFrom;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
+
+/*
+ * For /apinatomy's tile expansion: the parts and members asserted for each class, by
+ * shortform, in one pass over the import closure instead of one per class and request.
+ *
+ *   C SubClassOf regional_part some P        P is a "regional part" of C
+ *   C SubClassOf constitutional_part some P  P is a "constitutional part" of C
+ *   C(i), for a named individual i           i is a "subclass" of C
+ *
+ * (Subclasses proper come from the taxonomy.)  Composite terms minted by /eqterms are
+ * defined by equivalences, which add nothing here, so the index is only rebuilt when
+ * the ontology is reloaded.
+ */
+public class ApinatomyIndex
+{
+  static final Sub [] NONE = new Sub[0];
+
+  final Map<OWLClass,Sub[]> subs;
+
+  static class Sub
+  {
+    final String id;     // Shortform
+    final String type;   // "regional part", "constitutional part" or "subclass"
+
+    Sub( String id, String type )
+    {
+      this.id = id;
+      this.type = type;
+    }
+  }
+
+  ApinatomyIndex( Map<OWLClass,Sub[]> subs )
+  {
+    this.subs = subs;
+  }
+
+  public static ApinatomyIndex build( Set<OWLOntology> importClosure )
+  {
+    Map<OWLClass,List<Sub>> lists = new HashMap<OWLClass,List<Sub>>();
+
+    for ( OWLOntology imp : importClosure )
+    {
+      for ( OWLSubClassOfAxiom ax : imp.getAxioms( AxiomType.SUBCLASS_OF ) )
+      {
+        if ( ax.getSubClass().isAnonymous() || !( ax.getSuperClass() instanceof OWLObjectSomeValuesFrom ) )
+          continue;
+
+        OWLObjectSomeValuesFrom restrict = (OWLObjectSomeValuesFrom) ax.getSuperClass();
+        String type = null;
+
+        for ( OWLObjectProperty objProperty : restrict.getObjectPropertiesInSignature() )
+        {
+          String objPropertyShort = Owlkb.shortUrl( objProperty.toStringID() );
+
+          if ( objPropertyShort.equals( "regional_part" ) )
+            type = "regional part";
+          else
+          if ( objPropertyShort.equals( "constitutional_part" ) )
+            type = "constitutional part";
+
+          break;
+        }
+
+        if ( type == null )
+          continue;
+
+        for ( OWLClass part : restrict.getClassesInSignature() )
+        {
+          add( lists, ax.getSubClass().asOWLClass(), new Sub( Owlkb.shortUrl( part.toStringID() ), type ) );
+          break;
+        }
+      }
+
+      for ( OWLClassAssertionAxiom ax : imp.getAxioms( AxiomType.CLASS_ASSERTION ) )
+      {
+        OWLClassExpression exp = ax.getClassExpression();
+
+        if ( exp.isAnonymous() || !ax.getIndividual().isNamed() )
+          continue;
+
+        add( lists, exp.asOWLClass(), new Sub( Owlkb.shortUrl( ax.getIndividual().asOWLNamedIndividual().getIRI().toString() ), "subclass" ) );
+      }
+    }
+
+    Map<OWLClass,Sub[]> subs = new HashMap<OWLClass,Sub[]>( lists.size() * 2 );
+
+    for ( Map.Entry<OWLClass,List<Sub>> e : lists.entrySet() )
+      subs.put( e.getKey(), e.getValue().toArray( NONE ) );
+
+    return new ApinatomyIndex( subs );
+  }
+
+  static void add( Map<OWLClass,List<Sub>> lists, OWLClass c, Sub sub )
+  {
+    List<Sub> list = lists.get( c );
+
+    if ( list == null )
+    {
+      list = new ArrayList<Sub>( 2 );
+      lists.put( c, list );
+    }
+
+    list.add( sub );
+  }
+
+  /*
+   * The parts and members of c (not including its subclasses)
+   */
+  public Sub [] subs( OWLClass c )
+  {
+    Sub [] result = subs.get( c );
+
+    return ( result == null ) ? NONE : result;
+  }
+
+  public int size()
+  {
+    return subs.size();
+  }
+}
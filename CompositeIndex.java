@@ -0,0 +1,127 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.model.OWLEquivalentClassesAxiom;
+import org.semanticweb.owlapi.model.OWLObjectSomeValuesFrom;
+import org.semanticweb.owlapi.model.OWLOntology;
+
+/*
+ * Named classes defined as equivalent to a complex class expression (e.g. the RICORDO
+ * composite terms minted by /eqterms), by the normalized form of the expression, so
+ * that asking for a term which already exists needs no reasoning.
+ *
+ * Normalization flattens nested conjunctions and sorts conjuncts, so "A and (B and C)"
+ * and "C and B and A" share a key.  This only finds syntactic duplicates; expressions
+ * which are equivalent for other reasons still have to be checked by the reasoner.
+ *
+ * Entries are only ever added, so lookups need no locking.
+ */
+public class CompositeIndex
+{
+  final Map<String,OWLClass> byKey = new ConcurrentHashMap<String,OWLClass>();
+
+  public static CompositeIndex build( OWLOntology ont )
+  {
+    CompositeIndex index = new CompositeIndex();
+
+    for ( OWLEquivalentClassesAxiom ax : ont.getAxioms( AxiomType.EQUIVALENT_CLASSES ) )
+    {
+      if ( ax.getNamedClasses().isEmpty() )
+        continue;
+
+      OWLClass named = ax.getNamedClasses().iterator().next();
+
+      for ( OWLClassExpression exp : ax.getClassExpressions() )
+      {
+        if ( exp.isAnonymous() )
+          index.add( exp, named );
+      }
+    }
+
+    return index;
+  }
+
+  public void add( OWLClassExpression exp, OWLClass c )
+  {
+    String key = key( exp );
+
+    if ( !byKey.containsKey( key ) )
+      byKey.put( key, c );
+  }
+
+  /*
+   * A class defined as equivalent to exp (up to normalization), or null
+   */
+  public OWLClass lookup( OWLClassExpression exp )
+  {
+    return byKey.get( key( exp ) );
+  }
+
+  public int size()
+  {
+    return byKey.size();
+  }
+
+  /*
+   * Normalized form of exp: conjuncts (recursively flattened, and likewise normalized
+   * inside existential restrictions) in sorted order
+   */
+  static String key( OWLClassExpression exp )
+  {
+    List<String> conjuncts = new ArrayList<String>();
+
+    for ( OWLClassExpression conjunct : exp.asConjunctSet() )
+    {
+      if ( conjunct instanceof OWLObjectSomeValuesFrom )
+      {
+        OWLObjectSomeValuesFrom some = (OWLObjectSomeValuesFrom) conjunct;
+
+        conjuncts.add( "Some(" + some.getProperty() + " " + key( some.getFiller() ) + ")" );
+      }
+      else
+        conjuncts.add( conjunct.toString() );
+    }
+
+    if ( conjuncts.size() == 1 )
+      return conjuncts.get(0);
+
+    Collections.sort( conjuncts );
+
+    StringBuilder sb = new StringBuilder( "And(" );
+
+    for ( int i = 0; i < conjuncts.size(); i++ )
+    {
+      if ( i > 0 )
+        sb.append( ' ' );
+
+      sb.append( conjuncts.get(i) );
+    }
+
+    return sb.append( ')' ).toString();
+  }
+}
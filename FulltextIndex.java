@@ -0,0 +1,595 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntology;
+
+/*
+ * Token-based, typo-tolerant search over the rdfs:labels of all classes.
+ *
+ * Each label is a document, split into lowercase word tokens.  An inverted index maps each
+ * token to the documents containing it, and a character-trigram index over the vocabulary
+ * finds tokens spelled similarly to a query token.  A document scores by how many of the
+ * query's tokens it contains (misspelled matches count for less), so word order does not
+ * matter: "left ventricle wall" finds "Wall of left ventricle".  Each query token counts by
+ * its rarity (inverse document frequency), so "of" or "left" matter little next to "ventricle".
+ *
+ * Tokens found in more than COMMON_FRACTION of the labels ("of", "structure") are too costly
+ * to walk: if the query has a rarer token, the candidates come from the rarer tokens only,
+ * and the common ones just add to their scores.  So a label matching only common tokens is
+ * not found then; it would have ranked below the others anyway.
+ *
+ * Like the other label indexes, a FulltextIndex is never modified.  Labels added after
+ * startup go into a small delta segment which is rebuilt on each addition and appended
+ * to the main segment once it grows large.
+ */
+public class FulltextIndex
+{
+  static final int MAX_DELTA = 1024;
+  static final double MIN_SIMILARITY = 0.5;
+  static final double COMMON_FRACTION = 0.01;
+
+  final Segment main;
+  final Segment delta;
+
+  FulltextIndex( Segment main, Segment delta )
+  {
+    this.main = main;
+    this.delta = delta;
+  }
+
+  public static FulltextIndex build( LabelIndex labelIndex, Set<OWLOntology> importClosure )
+  {
+    return build( labelIndex.classLabels( importClosure ) );
+  }
+
+  /*
+   * Index the given labels, by class IRI
+   */
+  public static FulltextIndex build( Map<IRI,String[]> classLabels )
+  {
+    List<IRI> iris = new ArrayList<IRI>();
+    List<String> labels = new ArrayList<String>();
+
+    for ( Map.Entry<IRI,String[]> e : classLabels.entrySet() )
+    {
+      for ( String label : e.getValue() )
+      {
+        iris.add( e.getKey() );
+        labels.add( label );
+      }
+    }
+
+    return new FulltextIndex( new Segment( iris, labels ), new Segment( new ArrayList<IRI>(), new ArrayList<String>() ) );
+  }
+
+  public FulltextIndex withLabel( IRI iri, String label )
+  {
+    List<IRI> iris = new ArrayList<IRI>( Arrays.asList( delta.iris ) );
+    List<String> labels = new ArrayList<String>( Arrays.asList( delta.labels ) );
+
+    iris.add( iri );
+    labels.add( label );
+
+    Segment nextDelta = new Segment( iris, labels );
+
+    if ( iris.size() <= MAX_DELTA )
+      return new FulltextIndex( main, nextDelta );
+
+    return new FulltextIndex( main.append( nextDelta ), new Segment( new ArrayList<IRI>(), new ArrayList<String>() ) );
+  }
+
+  public int size()
+  {
+    return main.iris.length + delta.iris.length;
+  }
+
+  /*
+   * Up to limit distinct IRIs with a label matching query, best first.
+   * Each result is { IRI, label, score }, with score between 0 and 1.
+   * If fuzzy is false, only exactly spelled tokens match.
+   */
+  public List<Object[]> search( String query, int limit, boolean fuzzy )
+  {
+    List<String> tokens = new ArrayList<String>( new LinkedHashSet<String>( tokenize( query ) ) );
+    int n = tokens.size();
+
+    if ( n == 0 || limit <= 0 )
+      return new ArrayList<Object[]>();
+
+    List<Map<String,Double>> mainSimilar = new ArrayList<Map<String,Double>>();
+    List<Map<String,Double>> deltaSimilar = new ArrayList<Map<String,Double>>();
+    double [] weights = new double[n];
+    boolean [] drives = new boolean[n];   // Whether the token's matches are candidates
+    boolean anyDrives = false;
+    int labelCount = Math.max( 1, size() );
+
+    for ( int t = 0; t < n; t++ )
+    {
+      mainSimilar.add( main.similarTokens( tokens.get(t), fuzzy ) );
+      deltaSimilar.add( delta.similarTokens( tokens.get(t), fuzzy ) );
+
+      long df = main.frequency( mainSimilar.get(t).keySet() ) + delta.frequency( deltaSimilar.get(t).keySet() );
+
+      weights[t] = Math.log( 1.0 + (double) labelCount / ( 1 + df ) );
+      drives[t] = ( df > 0 && df <= COMMON_FRACTION * labelCount );
+      anyDrives |= drives[t];
+    }
+
+    if ( !anyDrives )
+      Arrays.fill( drives, true );
+
+    Top top = new Top( limit );
+
+    main.score( mainSimilar, weights, drives, top );
+    delta.score( deltaSimilar, weights, drives, top );
+
+    return top.sorted();
+  }
+
+  /*
+   * Best first: higher score, then shorter label
+   */
+  static final Comparator<Object[]> BEST_FIRST = new Comparator<Object[]>()
+  {
+    public int compare( Object [] a, Object [] b )
+    {
+      int cmp = Double.compare( (Double) b[2], (Double) a[2] );
+
+      if ( cmp != 0 )
+        return cmp;
+
+      return ((String) a[1]).length() - ((String) b[1]).length();
+    }
+  };
+
+  /*
+   * The best-scoring result of each IRI, among the best limit IRIs found so far
+   */
+  static class Top
+  {
+    final int limit;
+    final Map<IRI,Object[]> best = new HashMap<IRI,Object[]>();
+    final PriorityQueue<Object[]> worstFirst;
+
+    Top( int limit )
+    {
+      this.limit = limit;
+      this.worstFirst = new PriorityQueue<Object[]>( limit+1, Collections.reverseOrder( BEST_FIRST ) );
+    }
+
+    void offer( IRI iri, String label, double score )
+    {
+      if ( worstFirst.size() >= limit )
+      {
+        Object [] worst = worstFirst.peek();
+        double worstScore = (Double) worst[2];
+
+        if ( score < worstScore || ( score == worstScore && label.length() >= ((String) worst[1]).length() ) )
+          return;
+      }
+
+      Object [] result = new Object[] { iri, label, score };
+      Object [] previous = best.get( iri );
+
+      if ( previous != null )
+      {
+        if ( BEST_FIRST.compare( previous, result ) <= 0 )
+          return;
+
+        worstFirst.remove( previous );
+      }
+      else if ( worstFirst.size() >= limit )
+        best.remove( worstFirst.poll()[0] );
+
+      best.put( iri, result );
+      worstFirst.add( result );
+    }
+
+    List<Object[]> sorted()
+    {
+      List<Object[]> results = new ArrayList<Object[]>( worstFirst );
+
+      Collections.sort( results, BEST_FIRST );
+
+      return results;
+    }
+  }
+
+  static List<String> tokenize( String s )
+  {
+    List<String> tokens = new ArrayList<String>();
+    int start = -1;
+
+    for ( int i = 0; i <= s.length(); i++ )
+    {
+      boolean isWordChar = ( i < s.length() && Character.isLetterOrDigit( s.charAt(i) ) );
+
+      if ( isWordChar && start == -1 )
+        start = i;
+      else if ( !isWordChar && start != -1 )
+      {
+        tokens.add( s.substring( start, i ).toLowerCase() );
+        start = -1;
+      }
+    }
+
+    return tokens;
+  }
+
+  static List<String> trigrams( String token )
+  {
+    String padded = "$" + token + "$";
+    List<String> result = new ArrayList<String>();
+
+    for ( int i = 0; i + 3 <= padded.length(); i++ )
+      result.add( padded.substring( i, i+3 ) );
+
+    return result;
+  }
+
+  /*
+   * An inverted index over a fixed list of labels
+   */
+  static class Segment
+  {
+    final IRI [] iris;
+    final String [] labels;
+    final int [] tokenCounts;              // Number of distinct tokens in each label
+    final Map<String,int[]> postings;      // Token -> ascending ids of the labels containing it
+    final Map<String,String[]> trigramIndex;  // Trigram -> tokens (of at least 3 letters) containing it
+
+    Segment( List<IRI> iris, List<String> labels )
+    {
+      Map<String,List<Integer>> postingLists = new HashMap<String,List<Integer>>();
+
+      this.iris = iris.toArray( new IRI[0] );
+      this.labels = labels.toArray( new String[0] );
+      this.tokenCounts = new int[this.labels.length];
+
+      for ( int i = 0; i < this.labels.length; i++ )
+      {
+        Set<String> tokens = new LinkedHashSet<String>( tokenize( this.labels[i] ) );
+        tokenCounts[i] = tokens.size();
+
+        for ( String token : tokens )
+        {
+          List<Integer> list = postingLists.get( token );
+
+          if ( list == null )
+          {
+            list = new ArrayList<Integer>( 2 );
+            postingLists.put( token, list );
+          }
+
+          list.add( i );
+        }
+      }
+
+      postings = new HashMap<String,int[]>( postingLists.size() * 2 );
+
+      for ( Map.Entry<String,List<Integer>> e : postingLists.entrySet() )
+      {
+        int [] ids = new int[e.getValue().size()];
+
+        for ( int i = 0; i < ids.length; i++ )
+          ids[i] = e.getValue().get(i);
+
+        postings.put( e.getKey(), ids );
+      }
+
+      trigramIndex = indexTrigrams( postings.keySet(), new HashMap<String,String[]>() );
+    }
+
+    Segment( IRI [] iris, String [] labels, int [] tokenCounts, Map<String,int[]> postings, Map<String,String[]> trigramIndex )
+    {
+      this.iris = iris;
+      this.labels = labels;
+      this.tokenCounts = tokenCounts;
+      this.postings = postings;
+      this.trigramIndex = trigramIndex;
+    }
+
+    static Map<String,String[]> indexTrigrams( Set<String> tokens, Map<String,String[]> index )
+    {
+      Map<String,List<String>> lists = new HashMap<String,List<String>>();
+
+      for ( String token : tokens )
+      {
+        if ( token.length() < 3 )
+          continue;
+
+        for ( String trigram : new LinkedHashSet<String>( trigrams( token ) ) )
+        {
+          List<String> list = lists.get( trigram );
+
+          if ( list == null )
+          {
+            list = new ArrayList<String>();
+            lists.put( trigram, list );
+          }
+
+          list.add( token );
+        }
+      }
+
+      for ( Map.Entry<String,List<String>> e : lists.entrySet() )
+      {
+        String [] old = index.get( e.getKey() );
+        List<String> merged = ( old == null ) ? e.getValue() : new ArrayList<String>( Arrays.asList( old ) );
+
+        if ( old != null )
+          merged.addAll( e.getValue() );
+
+        index.put( e.getKey(), merged.toArray( new String[0] ) );
+      }
+
+      return index;
+    }
+
+    /*
+     * This segment followed by other, with other's label ids shifted past ours.
+     * Only the maps' entries for other's tokens are copied.
+     */
+    Segment append( Segment other )
+    {
+      int n = iris.length;
+      IRI [] nextIris = Arrays.copyOf( iris, n + other.iris.length );
+      String [] nextLabels = Arrays.copyOf( labels, n + other.labels.length );
+      int [] nextCounts = Arrays.copyOf( tokenCounts, n + other.tokenCounts.length );
+
+      System.arraycopy( other.iris, 0, nextIris, n, other.iris.length );
+      System.arraycopy( other.labels, 0, nextLabels, n, other.labels.length );
+      System.arraycopy( other.tokenCounts, 0, nextCounts, n, other.tokenCounts.length );
+
+      Map<String,int[]> nextPostings = new HashMap<String,int[]>( postings );
+      Set<String> newTokens = new LinkedHashSet<String>();
+
+      for ( Map.Entry<String,int[]> e : other.postings.entrySet() )
+      {
+        int [] old = postings.get( e.getKey() );
+        int [] add = e.getValue();
+        int [] merged = ( old == null ) ? new int[add.length] : Arrays.copyOf( old, old.length + add.length );
+        int offset = ( old == null ) ? 0 : old.length;
+
+        for ( int i = 0; i < add.length; i++ )
+          merged[offset+i] = add[i] + n;
+
+        nextPostings.put( e.getKey(), merged );
+
+        if ( old == null )
+          newTokens.add( e.getKey() );
+      }
+
+      Map<String,String[]> nextTrigrams = indexTrigrams( newTokens, new HashMap<String,String[]>( trigramIndex ) );
+
+      return new Segment( nextIris, nextLabels, nextCounts, nextPostings, nextTrigrams );
+    }
+
+    /*
+     * Vocabulary tokens spelled like token, with their trigram (Dice) similarity to it.
+     * The token itself, if present, has similarity 1.
+     */
+    Map<String,Double> similarTokens( String token, boolean fuzzy )
+    {
+      Map<String,Double> result = new HashMap<String,Double>();
+
+      if ( postings.containsKey( token ) )
+        result.put( token, 1.0 );
+
+      if ( !fuzzy || token.length() < 3 )
+        return result;
+
+      Set<String> grams = new LinkedHashSet<String>( trigrams( token ) );
+      Map<String,Integer> shared = new HashMap<String,Integer>();
+
+      for ( String gram : grams )
+      {
+        String [] candidates = trigramIndex.get( gram );
+
+        if ( candidates == null )
+          continue;
+
+        for ( String candidate : candidates )
+        {
+          Integer count = shared.get( candidate );
+          shared.put( candidate, ( count == null ) ? 1 : count + 1 );
+        }
+      }
+
+      for ( Map.Entry<String,Integer> e : shared.entrySet() )
+      {
+        if ( result.containsKey( e.getKey() ) )
+          continue;
+
+        int candidateGrams = new LinkedHashSet<String>( trigrams( e.getKey() ) ).size();
+        double similarity = 2.0 * e.getValue() / ( grams.size() + candidateGrams );
+
+        if ( similarity >= MIN_SIMILARITY )
+          result.put( e.getKey(), similarity * 0.9 );   // A misspelling never beats the exact spelling
+      }
+
+      return result;
+    }
+
+    /*
+     * Number of labels containing each of the given tokens, added up
+     */
+    long frequency( Set<String> tokens )
+    {
+      long df = 0;
+
+      for ( String token : tokens )
+        df += postings.get( token ).length;
+
+      return df;
+    }
+
+    /*
+     * Score the labels matching the driving query tokens, offering each to top.  similar
+     * gives, for each query token, the vocabulary tokens matching it and how well.
+     *
+     * A label's score is the weighted average, over query tokens, of how well the label
+     * matches that token, plus a small bonus for labels with few unmatched words.  The
+     * matches of each query token are merged into one list, sorted by label, and the lists
+     * are walked together, so that each label is scored once, without any per-label objects.
+     */
+    void score( List<Map<String,Double>> similar, double [] weights, boolean [] drives, Top top )
+    {
+      int n = similar.size();
+      int [][] docs = new int[n][];
+      double [][] sims = new double[n][];   // Null if the token matches only through one vocabulary token
+      double [] only = new double[n];       // How well that one token matches, if so
+      int [] at = new int[n];
+      double totalWeight = 0;
+
+      for ( int t = 0; t < n; t++ )
+      {
+        totalWeight += weights[t];
+        mergeMatches( similar.get(t), t, docs, sims, only );
+      }
+
+      while ( true )
+      {
+        int doc = Integer.MAX_VALUE;
+
+        for ( int t = 0; t < n; t++ )
+        {
+          if ( drives[t] && at[t] < docs[t].length )
+            doc = Math.min( doc, docs[t][at[t]] );
+        }
+
+        if ( doc == Integer.MAX_VALUE )
+          return;
+
+        double sum = 0;
+        int matched = 0;
+
+        for ( int t = 0; t < n; t++ )
+        {
+          if ( !drives[t] )
+            at[t] = seek( docs[t], at[t], doc );
+
+          if ( at[t] < docs[t].length && docs[t][at[t]] == doc )
+          {
+            sum += weights[t] * ( sims[t] == null ? only[t] : sims[t][at[t]] );
+            matched++;
+
+            if ( drives[t] )
+              at[t]++;
+          }
+        }
+
+        double coverage = ( tokenCounts[doc] == 0 ) ? 0 : Math.min( 1.0, (double) matched / tokenCounts[doc] );
+
+        top.offer( iris[doc], labels[doc], ( 0.9 * sum / totalWeight ) + ( 0.1 * coverage ) );
+      }
+    }
+
+    /*
+     * Merge the postings of the vocabulary tokens matching query token t into docs[t],
+     * keeping each label's best similarity in sims[t] (or only[t])
+     */
+    void mergeMatches( Map<String,Double> matches, int t, int [][] docs, double [][] sims, double [] only )
+    {
+      if ( matches.size() <= 1 )
+      {
+        docs[t] = new int[0];
+
+        for ( Map.Entry<String,Double> e : matches.entrySet() )
+        {
+          docs[t] = postings.get( e.getKey() );
+          only[t] = e.getValue();
+        }
+
+        return;
+      }
+
+      /*
+       * Sort (label, similarity) pairs packed into longs, best similarity first within a label
+       */
+      List<Map.Entry<String,Double>> bySimilarity = new ArrayList<Map.Entry<String,Double>>( matches.entrySet() );
+
+      Collections.sort( bySimilarity, new Comparator<Map.Entry<String,Double>>()
+      {
+        public int compare( Map.Entry<String,Double> a, Map.Entry<String,Double> b )
+        {
+          return Double.compare( b.getValue(), a.getValue() );
+        }
+      });
+
+      int total = 0;
+      for ( Map.Entry<String,Double> e : bySimilarity )
+        total += postings.get( e.getKey() ).length;
+
+      long [] packed = new long[total];
+      int k = 0;
+
+      for ( int i = 0; i < bySimilarity.size(); i++ )
+      {
+        for ( int doc : postings.get( bySimilarity.get(i).getKey() ) )
+          packed[k++] = ( (long) doc << 32 ) | i;
+      }
+
+      Arrays.sort( packed );
+
+      int [] d = new int[total];
+      double [] s = new double[total];
+      int m = 0;
+
+      for ( long x : packed )
+      {
+        int doc = (int) ( x >>> 32 );
+
+        if ( m > 0 && d[m-1] == doc )
+          continue;
+
+        d[m] = doc;
+        s[m++] = bySimilarity.get( (int) x ).getValue();
+      }
+
+      docs[t] = Arrays.copyOf( d, m );
+      sims[t] = Arrays.copyOf( s, m );
+    }
+
+    /*
+     * The first position at or after from whose label id is at least doc
+     */
+    static int seek( int [] docs, int from, int doc )
+    {
+      if ( from >= docs.length || docs[from] >= doc )
+        return from;
+
+      int i = Arrays.binarySearch( docs, from, docs.length, doc );
+
+      return ( i >= 0 ) ? i : -i - 1;
+    }
+  }
+}
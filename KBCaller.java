@@ -7,11 +7,26 @@ import java.net.URL;
 import java.net.HttpURLConnection;
 import java.util.Scanner;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class KBCaller
 {
   private String url;
 
+  /*
+   * Recent responses and their ETags, by command, so that unchanged results
+   * are revalidated instead of downloaded again
+   */
+  private static final int MAX_REMEMBERED = 256;
+  private final Map<String,String[]> remembered = new LinkedHashMap<String,String[]>( 16, 0.75f, true )
+  {
+    protected boolean removeEldestEntry( Map.Entry<String,String[]> eldest )
+    {
+      return size() > MAX_REMEMBERED;
+    }
+  };
+
   public KBCaller( String url )
   {
     this.url = url;
@@ -34,6 +49,38 @@ public class KBCaller
     return launch_http( "/subterms/" + encode( exp ) );
   }
 
+  /*
+   * Get the subterms of given term from position offset on, at most limit of them
+   */
+  public String subterms( String exp, int offset, int limit ) throws IOException
+  {
+    return launch_http( "/subterms/" + encode( exp ) + "?offset=" + offset + "&limit=" + limit );
+  }
+
+  /*
+   * Get the number of subterms of given term, as {"count": n}
+   */
+  public String countSubterms( String exp ) throws IOException
+  {
+    return launch_http( "/count/subterms/" + encode( exp ) );
+  }
+
+  /*
+   * Get the number of children of given term, as {"count": n}
+   */
+  public String countChildren( String exp ) throws IOException
+  {
+    return launch_http( "/count/children/" + encode( exp ) );
+  }
+
+  /*
+   * Get the number of instances of given term, as {"count": n}
+   */
+  public String countInstances( String exp ) throws IOException
+  {
+    return launch_http( "/count/instances/" + encode( exp ) );
+  }
+
   /*
    * Get all parents (i.e., direct superclasses) of a given term.
    */
@@ -69,6 +116,15 @@ public class KBCaller
     return launch_http( "/subhierarchy/" + encode( exp ) );
   }
 
+  /*
+   * Check whether one term is a subterm of (or equivalent to) another.
+   * Returns "true" or "false".
+   */
+  public String subsumes( String sub, String sup ) throws IOException
+  {
+    return launch_http( "/subsumes/" + encode( sub ) + "," + encode( sup ) );
+  }
+
   /*
    * Get all terms equivalent to given term
    */
@@ -109,6 +165,31 @@ public class KBCaller
     return launch_http( "/search/" + encode( label ) );
   }
 
+  /*
+   * Get up to limit terms having a label which starts with given prefix
+   */
+  public String autocomplete( String prefix, int limit ) throws IOException
+  {
+    return launch_http( "/autocomplete/" + encode( prefix ) + "?limit=" + limit );
+  }
+
+  /*
+   * Get terms whose labels contain the given words, in any order, allowing for typos
+   */
+  public String fulltext( String words ) throws IOException
+  {
+    return launch_http( "/fulltext/" + encode( words ) );
+  }
+
+  /*
+   * Run several queries in one request.  queriesJson is a JSON list of
+   * {"op": ..., "expression": ..., "flags": {...}} objects; see /batch in Owlkb.
+   */
+  public String batch( String queriesJson ) throws IOException
+  {
+    return launch_http_post( "/batch", queriesJson );
+  }
+
   /*
    * Attempt to add label to given term
    */
@@ -149,9 +230,22 @@ public class KBCaller
 
     c.setRequestProperty( "Accept", "application/json" );
 
+    String [] previous;
+
+    synchronized( remembered )
+    {
+      previous = remembered.get( cmd );
+    }
+
+    if ( previous != null )
+      c.setRequestProperty( "If-None-Match", previous[0] );
+
     Scanner sc = null;
     try
     {
+      if ( previous != null && c.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED )
+        return previous[1];
+
       sc = new Scanner(c.getInputStream( ) );
     }
     catch( Exception e )
@@ -159,7 +253,53 @@ public class KBCaller
       throw new IOException("Could not read from OWLKB");
     }
 
-    return sc.useDelimiter("\\A").next();
+    String response = sc.useDelimiter("\\A").next();
+    String etag = c.getHeaderField( "ETag" );
+
+    if ( etag != null )
+    {
+      synchronized( remembered )
+      {
+        remembered.put( cmd, new String[] { etag, response } );
+      }
+    }
+
+    return response;
+  }
+
+  private String launch_http_post( String cmd, String body ) throws IOException
+  {
+    HttpURLConnection c;
+
+    try
+    {
+      c = (HttpURLConnection) new URL(url + cmd).openConnection();
+
+      c.setConnectTimeout(2000);
+      c.setReadTimeout(30000);
+      c.setRequestMethod( "POST" );
+      c.setDoOutput( true );
+    }
+    catch ( Exception e )
+    {
+      throw new IOException("Could not connect to OWLKB");
+    }
+
+    c.setRequestProperty( "Accept", "application/json" );
+    c.setRequestProperty( "Content-Type", "application/json; charset=UTF-8" );
+
+    try
+    {
+      OutputStream os = c.getOutputStream();
+      os.write( body.getBytes( "UTF-8" ) );
+      os.close();
+
+      return new Scanner( c.getInputStream(), "UTF-8" ).useDelimiter("\\A").next();
+    }
+    catch( Exception e )
+    {
+      throw new IOException("Could not read from OWLKB");
+    }
   }
 
   private ArrayList<String> parse_json_dont_clutter_top_of_file_with_code( String j ) throws IOException
@@ -0,0 +1,120 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+
+/*
+ * One version of everything needed to answer named-class queries: the taxonomy, the label
+ * indexes, the shortforms of the classes and the part-of graph.  Never modified; a change
+ * produces the next version (sharing whatever the change didn't touch), which is published
+ * in one step by Owlkb.publish().  A reader which takes a view sees one consistent version for as long as
+ * it holds it, however many versions are published meanwhile.  Only queries the view can answer
+ * by itself (about the named classes it has) are lock-free; see Owlkb.handleFromView().
+ *
+ * The generation numbers the versions, and also tags cached responses and ETags, so it
+ * is bumped for changes to the ontology which the indexes don't reflect, too (see changed()).
+ */
+public class KbView
+{
+  final long generation;
+  final Taxonomy taxonomy;
+  final LabelIndex labelIndex;
+  final PrefixIndex prefixIndex;   // For autocompleting class labels
+  final FulltextIndex fulltextIndex;   // For token-based and fuzzy label search
+
+  /*
+   * Shortform -> class.  Shared by successive versions, and only ever added to (new terms
+   * are added as they are minted), so a shortform is only looked up in a version whose
+   * taxonomy has its class.
+   */
+  final ConcurrentMap<String,OWLClass> shortforms;
+
+  /*
+   * Part-of edges between the taxonomy's nodes (null in the view loaded from a taxonomy snapshot)
+   */
+  final PartOfGraph partOf;
+
+  public KbView( long generation, Taxonomy taxonomy, LabelIndex labelIndex, PrefixIndex prefixIndex, FulltextIndex fulltextIndex, ConcurrentMap<String,OWLClass> shortforms, PartOfGraph partOf )
+  {
+    this.generation = generation;
+    this.taxonomy = taxonomy;
+    this.labelIndex = labelIndex;
+    this.prefixIndex = prefixIndex;
+    this.fulltextIndex = fulltextIndex;
+    this.shortforms = shortforms;
+    this.partOf = partOf;
+  }
+
+  /*
+   * The class in this version's taxonomy with the given shortform, or null
+   */
+  public OWLClass classOfShortform( String shortform )
+  {
+    OWLClass c = shortforms.get( shortform );
+
+    return ( c != null && taxonomy.idOf( c ) != -1 ) ? c : null;
+  }
+
+  /*
+   * Make a newly minted class findable by its shortform, once a version with it in the taxonomy is published
+   */
+  public void addShortform( String shortform, OWLClass c )
+  {
+    shortforms.putIfAbsent( shortform, c );
+  }
+
+  /*
+   * The next version, with the given classes (already classified by r) added to the taxonomy
+   */
+  public KbView withClasses( Collection<OWLClass> classes, OWLReasoner r )
+  {
+    return new KbView( generation + 1, taxonomy.withClasses( classes, r ), labelIndex, prefixIndex, fulltextIndex, shortforms, partOf );
+  }
+
+  /*
+   * The next version, with the given taxonomy (a patched copy of this version's, made
+   * without holding the write lock)
+   */
+  public KbView withTaxonomy( Taxonomy patched )
+  {
+    return new KbView( generation + 1, patched, labelIndex, prefixIndex, fulltextIndex, shortforms, partOf );
+  }
+
+  /*
+   * The next version, with one more label for iri
+   */
+  public KbView withLabel( IRI iri, String label )
+  {
+    return new KbView( generation + 1, taxonomy, labelIndex.withLabel( iri, label ), prefixIndex.withLabel( iri, label ), fulltextIndex.withLabel( iri, label ), shortforms, partOf );
+  }
+
+  /*
+   * The next version, with the same indexes: for changes to the ontology which don't show
+   * in them yet, such as a term which has been minted but not yet classified
+   */
+  public KbView changed()
+  {
+    return new KbView( generation + 1, taxonomy, labelIndex, prefixIndex, fulltextIndex, shortforms, partOf );
+  }
+}
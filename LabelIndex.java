@@ -0,0 +1,195 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAnnotationAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLAnnotationProperty;
+import org.semanticweb.owlapi.model.OWLLiteral;
+import org.semanticweb.owlapi.model.OWLOntology;
+
+/*
+ * All rdfs:labels in the import closure, by subject IRI, collected once at startup
+ * so that looking up labels never has to scan the ontologies.
+ *
+ * The labels of an IRI are ordered with those from the main ontology first; the first
+ * one is the preferred label.  A LabelIndex is never modified: withLabel() returns a
+ * new index.  To keep that cheap, labels added after startup live in a small overlay
+ * map which is copied on write and folded into the base map once it grows large.
+ */
+public class LabelIndex
+{
+  static final int MAX_OVERLAY = 1024;
+
+  final Map<IRI,String[]> base;
+  final Map<IRI,String[]> overlay;   // Complete label arrays for IRIs labeled since base was built
+
+  LabelIndex( Map<IRI,String[]> base, Map<IRI,String[]> overlay )
+  {
+    this.base = base;
+    this.overlay = overlay;
+  }
+
+  public static LabelIndex build( OWLOntology main, Set<OWLOntology> importClosure, OWLAnnotationProperty rdfsLabel )
+  {
+    Map<IRI,String[]> labels = new HashMap<IRI,String[]>();
+
+    addLabels( main, rdfsLabel, labels );
+
+    for ( OWLOntology imp : importClosure )
+    {
+      if ( imp != main )
+        addLabels( imp, rdfsLabel, labels );
+    }
+
+    return new LabelIndex( labels, Collections.<IRI,String[]>emptyMap() );
+  }
+
+  static void addLabels( OWLOntology ont, OWLAnnotationProperty rdfsLabel, Map<IRI,String[]> labels )
+  {
+    for ( OWLAnnotationAssertionAxiom ax : ont.getAxioms( AxiomType.ANNOTATION_ASSERTION ) )
+    {
+      if ( !ax.getProperty().equals( rdfsLabel )
+      ||   !( ax.getSubject() instanceof IRI )
+      ||   !( ax.getValue() instanceof OWLLiteral ) )
+        continue;
+
+      IRI subject = (IRI) ax.getSubject();
+      String [] grown = appendLabel( labels.get( subject ), ((OWLLiteral) ax.getValue()).getLiteral() );
+
+      if ( grown != null )
+        labels.put( subject, grown );
+    }
+  }
+
+  /*
+   * The given labels plus one more, or null if the label was already there
+   */
+  static String [] appendLabel( String [] labels, String label )
+  {
+    if ( labels == null )
+      return new String[] { label };
+
+    for ( String x : labels )
+    {
+      if ( x.equals( label ) )
+        return null;
+    }
+
+    String [] grown = Arrays.copyOf( labels, labels.length + 1 );
+    grown[labels.length] = label;
+
+    return grown;
+  }
+
+  /*
+   * All labels of iri (preferred label first), or null if it has none
+   */
+  public String [] labels( IRI iri )
+  {
+    String [] x = overlay.get( iri );
+
+    return ( x != null ) ? x : base.get( iri );
+  }
+
+  public String preferredLabel( IRI iri )
+  {
+    String [] x = labels( iri );
+
+    return ( x == null ) ? null : x[0];
+  }
+
+  public boolean hasLabel( IRI iri, String label )
+  {
+    String [] x = labels( iri );
+
+    return x != null && Arrays.asList( x ).contains( label );
+  }
+
+  public LabelIndex withLabel( IRI iri, String label )
+  {
+    String [] grown = appendLabel( labels( iri ), label );
+
+    if ( grown == null )
+      return this;
+
+    Map<IRI,String[]> nextOverlay = new HashMap<IRI,String[]>( overlay );
+    nextOverlay.put( iri, grown );
+
+    if ( nextOverlay.size() <= MAX_OVERLAY )
+      return new LabelIndex( base, nextOverlay );
+
+    Map<IRI,String[]> nextBase = new HashMap<IRI,String[]>( base );
+    nextBase.putAll( nextOverlay );
+
+    return new LabelIndex( nextBase, Collections.<IRI,String[]>emptyMap() );
+  }
+
+  /*
+   * The labels of every labeled IRI which is a class somewhere in the import closure
+   */
+  public Map<IRI,String[]> classLabels( Set<OWLOntology> importClosure )
+  {
+    Map<IRI,String[]> result = new HashMap<IRI,String[]>();
+
+    for ( Map<IRI,String[]> map : Arrays.asList( base, overlay ) )
+    {
+      for ( Map.Entry<IRI,String[]> e : map.entrySet() )
+      {
+        if ( isClass( e.getKey(), importClosure ) )
+          result.put( e.getKey(), labels( e.getKey() ) );
+      }
+    }
+
+    return result;
+  }
+
+  static boolean isClass( IRI iri, Set<OWLOntology> importClosure )
+  {
+    for ( OWLOntology ont : importClosure )
+    {
+      if ( ont.containsClassInSignature( iri ) )
+        return true;
+    }
+
+    return false;
+  }
+
+  /*
+   * Number of labeled IRIs
+   */
+  public int size()
+  {
+    int n = base.size();
+
+    for ( IRI iri : overlay.keySet() )
+    {
+      if ( !base.containsKey( iri ) )
+        n++;
+    }
+
+    return n;
+  }
+}
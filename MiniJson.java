@@ -0,0 +1,281 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Minimal JSON parser, for request bodies.  Objects become Maps (in document order),
+ * arrays become Lists, numbers become Doubles, and true/false/null become Boolean/null.
+ * Malformed input throws IllegalArgumentException.
+ */
+public class MiniJson
+{
+  static final int MAX_DEPTH = 64;   // Deepest nesting of lists and objects, so that a hostile body can't overflow the stack
+
+  final String s;
+  int pos;
+  int depth;
+
+  MiniJson( String s )
+  {
+    this.s = s;
+  }
+
+  public static Object parse( String json )
+  {
+    MiniJson p = new MiniJson( json );
+    Object value = p.value();
+
+    p.skipSpace();
+    if ( p.pos != json.length() )
+      throw p.error( "Unexpected trailing characters" );
+
+    return value;
+  }
+
+  /*
+   * A parsed value as a list, or null if it is not one
+   */
+  public static List<?> asList( Object value )
+  {
+    return ( value instanceof List ) ? (List<?>) value : null;
+  }
+
+  /*
+   * A copy of a parsed value as an object, or null if it is not one
+   */
+  public static Map<String,Object> asObject( Object value )
+  {
+    if ( !( value instanceof Map ) )
+      return null;
+
+    Map<String,Object> result = new LinkedHashMap<String,Object>();
+
+    for ( Map.Entry<?,?> e : ((Map<?,?>) value).entrySet() )
+      result.put( (String) e.getKey(), e.getValue() );
+
+    return result;
+  }
+
+  Object value()
+  {
+    skipSpace();
+
+    if ( pos >= s.length() )
+      throw error( "Unexpected end of input" );
+
+    char c = s.charAt( pos );
+
+    if ( c == '{' || c == '[' )
+    {
+      if ( ++depth > MAX_DEPTH )
+        throw error( "Nested more than " + MAX_DEPTH + " deep" );
+
+      Object result = ( c == '{' ) ? object() : array();
+      depth--;
+
+      return result;
+    }
+    if ( c == '"' )
+      return string();
+    if ( s.startsWith( "true", pos ) )
+    {
+      pos += 4;
+      return Boolean.TRUE;
+    }
+    if ( s.startsWith( "false", pos ) )
+    {
+      pos += 5;
+      return Boolean.FALSE;
+    }
+    if ( s.startsWith( "null", pos ) )
+    {
+      pos += 4;
+      return null;
+    }
+
+    return number();
+  }
+
+  Map<String,Object> object()
+  {
+    Map<String,Object> result = new LinkedHashMap<String,Object>();
+
+    pos++;
+    skipSpace();
+
+    if ( peek() == '}' )
+    {
+      pos++;
+      return result;
+    }
+
+    while ( true )
+    {
+      skipSpace();
+
+      if ( peek() != '"' )
+        throw error( "Expected a string key" );
+
+      String key = string();
+
+      skipSpace();
+      expect( ':' );
+      result.put( key, value() );
+      skipSpace();
+
+      if ( peek() == ',' )
+      {
+        pos++;
+        continue;
+      }
+
+      expect( '}' );
+      return result;
+    }
+  }
+
+  List<Object> array()
+  {
+    List<Object> result = new ArrayList<Object>();
+
+    pos++;
+    skipSpace();
+
+    if ( peek() == ']' )
+    {
+      pos++;
+      return result;
+    }
+
+    while ( true )
+    {
+      result.add( value() );
+      skipSpace();
+
+      if ( peek() == ',' )
+      {
+        pos++;
+        continue;
+      }
+
+      expect( ']' );
+      return result;
+    }
+  }
+
+  String string()
+  {
+    StringBuilder sb = new StringBuilder();
+
+    pos++;
+
+    while ( true )
+    {
+      if ( pos >= s.length() )
+        throw error( "Unterminated string" );
+
+      char c = s.charAt( pos++ );
+
+      if ( c == '"' )
+        return sb.toString();
+
+      if ( c != '\\' )
+      {
+        sb.append( c );
+        continue;
+      }
+
+      if ( pos >= s.length() )
+        throw error( "Unterminated string" );
+
+      char e = s.charAt( pos++ );
+
+      switch( e )
+      {
+        case 'n': sb.append( '\n' ); break;
+        case 't': sb.append( '\t' ); break;
+        case 'r': sb.append( '\r' ); break;
+        case 'b': sb.append( '\b' ); break;
+        case 'f': sb.append( '\f' ); break;
+        case 'u':
+          if ( pos + 4 > s.length() )
+            throw error( "Bad unicode escape" );
+
+          try
+          {
+            sb.append( (char) Integer.parseInt( s.substring( pos, pos+4 ), 16 ) );
+          }
+          catch( NumberFormatException ex )
+          {
+            throw error( "Bad unicode escape" );
+          }
+
+          pos += 4;
+          break;
+        default: sb.append( e ); break;
+      }
+    }
+  }
+
+  Double number()
+  {
+    int start = pos;
+
+    while ( pos < s.length() && "+-0123456789.eE".indexOf( s.charAt( pos ) ) != -1 )
+      pos++;
+
+    try
+    {
+      return Double.valueOf( s.substring( start, pos ) );
+    }
+    catch( NumberFormatException e )
+    {
+      pos = start;
+      throw error( "Unexpected character" );
+    }
+  }
+
+  void skipSpace()
+  {
+    while ( pos < s.length() && Character.isWhitespace( s.charAt( pos ) ) )
+      pos++;
+  }
+
+  char peek()
+  {
+    return ( pos < s.length() ) ? s.charAt( pos ) : '\0';
+  }
+
+  void expect( char c )
+  {
+    if ( peek() != c )
+      throw error( "Expected '" + c + "'" );
+
+    pos++;
+  }
+
+  IllegalArgumentException error( String message )
+  {
+    return new IllegalArgumentException( message + " at position " + pos );
+  }
+}
@@ -25,8 +25,14 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.semanticweb.elk.owlapi.ElkReasonerFactory;
+import org.semanticweb.elk.owlapi.ElkReasonerConfiguration;
+import org.semanticweb.elk.reasoner.config.ReasonerConfiguration;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
 import org.semanticweb.owlapi.reasoner.OWLReasonerFactory;
 import org.semanticweb.owlapi.reasoner.Node;
@@ -39,10 +45,12 @@ import org.semanticweb.owlapi.io.UnparsableOntologyException;
 import org.semanticweb.owlapi.io.OWLOntologyCreationIOException;
 import org.semanticweb.owlapi.io.OWLOntologyInputSourceException;
 import org.coode.owlapi.manchesterowlsyntax.ManchesterOWLSyntaxEditorParser;
+import uk.ac.manchester.cs.owl.owlapi.mansyntaxrenderer.ManchesterOWLSyntaxObjectRenderer;
 import org.semanticweb.owlapi.util.BidirectionalShortFormProvider;
 import org.semanticweb.owlapi.util.BidirectionalShortFormProviderAdapter;
 import org.semanticweb.owlapi.util.AnnotationValueShortFormProvider;
 import org.semanticweb.owlapi.util.OWLOntologyImportsClosureSetProvider;
+import org.semanticweb.owlapi.util.ShortFormProvider;
 import org.semanticweb.owlapi.expression.OWLEntityChecker;
 import org.semanticweb.owlapi.expression.ShortFormEntityChecker;
 
@@ -66,6 +74,15 @@ public class Owlkb
   public boolean getCountsFromFeather; // For easy reversion in case SPARQL doesn't work
   public String openPhactsAppId;  // For querying openPHACTS API
   public String openPhactsAppKey; // For querying openPHACTS API
+  public int numThreads;    // Number of threads handling requests.  Default: number of available processors
+  public boolean useWal;    // Whether to log changes instead of saving the whole ontology each time.  Default: true
+  public int snapshotMinutes; // How often to save the ontology when logging changes.  Default: 10
+  public boolean incremental; // Whether to classify new terms incrementally, in batches (ELK only).  Default: true
+  public int debounceMillis;  // How long a batch of new terms waits for more to join it.  Default: 20
+  public int cacheMegabytes; // How much memory cached query responses may take up, in MB (0 to disable).  Default: 64
+  public boolean fastRestart; // Whether to save the classified taxonomy, and answer queries from it while restarting.  Default: true
+  public int reasonerThreads; // Number of threads ELK classifies with.  Default: number of available processors
+  public int subhierarchyMaxNodes; // Most classes a /subhierarchy response lists, unless the request says otherwise; 0 for no limit.  Default: 0
 
   /*
    * Variables to be initialized elsewhere than the command-line
@@ -77,6 +94,101 @@ public class Owlkb
   Set<OWLOntology> importClosure;
   OWLAnnotationProperty rdfsLabel;
 
+  /*
+   * Requests which only read the ontology and reasoner run concurrently under the read lock.
+   * Requests which can modify the ontology (adding composite terms or labels, and saving
+   * the result) take the write lock, so they are serialized against everything else.
+   */
+  final ReentrantReadWriteLock kbLock = new ReentrantReadWriteLock();
+
+  /*
+   * Guards the reasoner.  ELK answers queries from several threads at once, so requests which
+   * may query it share the read lock; HermiT doesn't, so with HermiT they take the write lock,
+   * one at a time.  Changes to the ontology (which the reasoner listens to) and bringing the
+   * reasoner up to date with them take the write lock.  Always taken before kbLock, never
+   * while holding it.
+   */
+  final ReentrantReadWriteLock reasonerLock = new ReentrantReadWriteLock();
+
+  /*
+   * The current version of the compiled class hierarchy, the label indexes and the class
+   * shortforms, for answering queries about named classes without going through the reasoner
+   * (see KbView).  Writers (holding the write lock) build the next version and publish it;
+   * readers take one and keep it for the whole request, and need no lock.
+   */
+  final java.util.concurrent.atomic.AtomicReference<KbView> published = new java.util.concurrent.atomic.AtomicReference<KbView>();
+
+  /*
+   * The view the current thread is answering a lock-free request from, if any
+   */
+  final ThreadLocal<KbView> pinned = new ThreadLocal<KbView>();
+
+  java.util.concurrent.ExecutorService requestPool;   // Threads handling requests (and helping with /batch requests)
+
+  /*
+   * Changes not yet saved into the ontology file (null if changes are saved directly, or not at all)
+   */
+  WriteAheadLog wal;
+
+  /*
+   * Classes defined as complex expressions, by normalized expression
+   */
+  CompositeIndex compositeIndex;
+
+  /*
+   * Parts and members of each class, for /apinatomy
+   */
+  ApinatomyIndex apinatomyIndex;
+
+  /*
+   * Classifies terms minted by /eqterms in batches (null if each is classified as it is minted)
+   */
+  Reclassifier reclassifier;
+
+  /*
+   * The latest /generate-triples run, to a file or streamed (null if none), for
+   * /generate-triples/status.  Runs don't overlap; see startTriplesExport().
+   */
+  final java.util.concurrent.atomic.AtomicReference<TriplesExport> triplesExport = new java.util.concurrent.atomic.AtomicReference<TriplesExport>();
+
+  final java.util.concurrent.atomic.AtomicLong lastRicordoID = new java.util.concurrent.atomic.AtomicLong();
+
+  ResultCache resultCache;   // Null if caching is disabled; tagged with KbView generations
+
+  /*
+   * Distinguishes this run's ETags from those of earlier runs, whose generations started from 0 too
+   */
+  final String bootId = Long.toString( System.currentTimeMillis(), 36 );
+
+  /*
+   * Set once the ontology is loaded and classified.  Until then, only requests which the
+   * view loaded from the taxonomy snapshot can answer are answered.
+   */
+  volatile boolean ready;
+  final List<NetHandler> handlers = new ArrayList<NetHandler>();
+
+  /*
+   * How long each phase of startup took, and likewise for the last reload (null if none)
+   */
+  final StartupProfile startup = new StartupProfile( "Startup" );
+  volatile StartupProfile lastReload;
+
+  /*
+   * The ontology and reasoner being served.  Replaced, together with everything derived
+   * from them, by /reload.
+   */
+  OWLOntologyManager manager;
+  OWLOntology ont;
+  IRI ontIri;
+  OWLReasoner reasoner;
+
+  final java.util.concurrent.atomic.AtomicBoolean reloading = new java.util.concurrent.atomic.AtomicBoolean();
+
+  /*
+   * Held while reloading, so that the ontology file isn't saved while it is being read
+   */
+  final java.util.concurrent.locks.ReentrantLock fileLock = new java.util.concurrent.locks.ReentrantLock();
+
   public static void main(String [] args) throws Exception
   {
     Owlkb owlkb = new Owlkb();
@@ -95,17 +207,46 @@ public class Owlkb
       return;
 
     /*
-     * Load the main ontology
+     * If the taxonomy saved by the last run is still current, start answering
+     * named-class queries from it while the ontology loads
      */
-    OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+    HttpServer server = null;
+    boolean fromSnapshot = false;
 
-    logString( "Loading ontology...");
+    if ( fastRestart && kbFilename != null )
+    {
+      StartupProfile.Phase snapshotPhase = startup.begin( "Loading taxonomy snapshot" );
+      TaxonomySnapshot bootSnapshot = null;
 
-    OWLOntologyLoaderConfiguration config = new OWLOntologyLoaderConfiguration();         // If the main ontology imports an RDF fragment,
-    config = config.setMissingOntologyHeaderStrategy(OWLOntologyLoaderConfiguration.MissingOntologyHeaderStrategy.IMPORT_GRAPH);  // prevent that fragment from being saved into the ontology.
+      try
+      {
+        bootSnapshot = TaxonomySnapshot.load( taxonomySnapshotFile(), TaxonomySnapshot.checksum( ontologyFiles() ), df );
+      }
+      catch ( Exception e )
+      {
+        logString( "Could not read taxonomy snapshot: "+e.getMessage() );
+      }
+
+      if ( bootSnapshot != null )
+      {
+        fromSnapshot = true;
+        publish( new KbView( 0, bootSnapshot.taxonomy, bootSnapshot.labelIndex, PrefixIndex.build( bootSnapshot.classLabels ), FulltextIndex.build( bootSnapshot.classLabels ), bootSnapshot.shortforms, null ) );
+      }
+
+      startup.end( snapshotPhase );
+
+      if ( bootSnapshot != null )
+      {
+        logString( "Loaded taxonomy snapshot of "+bootSnapshot.taxonomy.size()+" nodes" );
+
+        server = createServer();
+        server.start();
+
+        logString( "Server initiated ("+numThreads+" worker threads); answering named-class queries from the snapshot until the ontology is loaded.");
+      }
+    }
 
     File kbFile;
-    OWLOntology ont;
 
     try
     {
@@ -123,343 +264,1879 @@ public class Owlkb
       return;
     }
 
-    ont = loadOwlkbOntology( kbFile, kbFilename, manager, config );
+    /*
+     * Load and classify the ontology
+     */
+    KbState state = loadKnowledgebase( kbFile, startup, fromSnapshot );
+
+    if ( state == null )
+    {
+      if ( server != null )
+      {
+        server.stop( 0 );
+        requestPool.shutdown();
+      }
 
-    if ( ont == null )
       return;
+    }
+
+    if ( hdSave && useWal )
+      wal = new WriteAheadLog( walFile() );
+
+    if ( cacheMegabytes > 0 )
+      resultCache = new ResultCache( cacheMegabytes * 1024L * 1024L );
+
+    /*
+     * Launch HTTP server (or, if it is already answering from the snapshot, let it answer everything)
+     */
+    if ( server == null )
+    {
+      logString( "Initiating server...");
+      server = createServer();
+    }
+
+    install( state );
+
+    ready = true;
+    startup.finish();
+
+    if ( fromSnapshot )
+      logString( "Finished loading; answering all queries.");
+    else
+    {
+      server.start();
+      logString( "Server initiated ("+numThreads+" worker threads).");
+
+      /*
+       * Save the taxonomy, so the next start can skip classification before serving
+       */
+      if ( fastRestart )
+      {
+        kbLock.readLock().lock();
+
+        try
+        {
+          writeTaxonomySnapshot();
+        }
+        finally
+        {
+          kbLock.readLock().unlock();
+        }
+      }
+    }
+
+    if ( wal != null )
+      scheduleSnapshots();
+  }
+
+  /*
+   * Everything built from the ontology files.  Built in full by loadKnowledgebase() and
+   * then served, as a whole, by install().
+   */
+  static class KbState
+  {
+    OWLOntologyManager manager;
+    OWLOntology ont;
+    IRI iri;
+    Set<OWLOntology> importClosure;
+    OWLOntologyImportsClosureSetProvider ontSet;
+    BidirectionalShortFormProvider shortformProvider;
+    BidirectionalShortFormProviderAdapter annotProvider;
+    OWLEntityChecker entityChecker;
+    OWLReasoner r;
+    CompositeIndex compositeIndex;
+    ApinatomyIndex apinatomyIndex;
+    PartOfGraph partOf;
+    Taxonomy taxonomy;
+    LabelIndex labelIndex;
+    PrefixIndex prefixIndex;
+    FulltextIndex fulltextIndex;
+    java.util.concurrent.ConcurrentMap<String,OWLClass> shortforms;
+    int walRecords;   // Number of write-ahead log records replayed into ont
+  }
+
+  /*
+   * Load the ontology file (with its imports and the changes logged since it was saved),
+   * classify it, and build everything derived from it, without touching what is being
+   * served.  If reuseIndexes is set, the taxonomy and label indexes being served (from a
+   * snapshot of the same files) are kept instead of being rebuilt.  Returns null if the
+   * ontology can't be loaded.
+   */
+  KbState loadKnowledgebase( File kbFile, StartupProfile profile, boolean reuseIndexes ) throws Exception
+  {
+    final KbState s = new KbState();
+    StartupProfile.Phase phase;
+
+    /*
+     * Load the main ontology
+     */
+    s.manager = OWLManager.createOWLOntologyManager();
+
+    logString( "Loading ontology...");
+
+    OWLOntologyLoaderConfiguration config = new OWLOntologyLoaderConfiguration();         // If the main ontology imports an RDF fragment,
+    config = config.setMissingOntologyHeaderStrategy(OWLOntologyLoaderConfiguration.MissingOntologyHeaderStrategy.IMPORT_GRAPH);  // prevent that fragment from being saved into the ontology.
+
+    phase = profile.begin( "Loading ontology" );
+    s.ont = loadOwlkbOntology( kbFile, kbFilename, s.manager, config );
+    profile.end( phase );
+
+    if ( s.ont == null )
+      return null;
 
     logString( "Ontology is loaded.");
 
-    IRI iri = manager.getOntologyDocumentIRI(ont);
+    s.iri = s.manager.getOntologyDocumentIRI(s.ont);
 
     /*
      * Load the ontologies imported by the main ontology (e.g., the reference ontologies)
      */
-    importClosure = ont.getImportsClosure();
-    ontSet = new OWLOntologyImportsClosureSetProvider(manager, ont);
+    s.importClosure = s.ont.getImportsClosure();
+    s.ontSet = new OWLOntologyImportsClosureSetProvider(s.manager, s.ont);
 
     /*
-     * Establish infrastructure for converting long URLs to short IRIs and vice versa
-     * (e.g., converting between "http://purl.org/obo/owlapi/quality#PATO_0000014" and "PATO_0000014")
+     * Reapply changes made since the ontology file was last saved
      */
-    shortformProvider = new BidirectionalShortFormProviderAdapter(manager, importClosure, new org.semanticweb.owlapi.util.SimpleShortFormProvider());
-    OWLEntityChecker entityChecker = new ShortFormEntityChecker(shortformProvider);
+    if ( hdSave && useWal )
+    {
+      phase = profile.begin( "Replaying write-ahead log" );
+      s.walRecords = replayWriteAheadLog( walFile(), s.ont, s.manager );
+      profile.end( phase );
+    }
 
     /*
-     * Infrastructure for searching for classes by label
+     * The OWL API indexes an ontology's axioms lazily, on first use, without synchronization,
+     * so a reader racing the first use can see a partly built index.  Build them all now,
+     * before the phases below and the request threads read the ontology concurrently.
      */
-    List<OWLAnnotationProperty> labeltypeList = new ArrayList<OWLAnnotationProperty>();
-    labeltypeList.add(rdfsLabel);
-    Map<OWLAnnotationProperty,List<String>> emptyMap = new HashMap<OWLAnnotationProperty,List<String>>();
-    AnnotationValueShortFormProvider preAnnotProvider = new AnnotationValueShortFormProvider(labeltypeList, emptyMap, ontSet );
-    annotProvider = new BidirectionalShortFormProviderAdapter(manager, importClosure, preAnnotProvider);
+    phase = profile.begin( "Building ontology indexes" );
+    buildOntologyIndexes( s.importClosure );
+    profile.end( phase );
 
     /*
-     * Initiate the reasoner
+     * Initiate the reasoner.  This comes before the phases below start, because the
+     * reasoner and the shortform providers register listeners with the ontology manager,
+     * which must not be done from two threads at once.
      */
     logString( "Establishing "+reasonerName+" reasoner...");
 
-    OWLReasoner r;
+    phase = profile.begin( "Establishing reasoner" );
 
     if ( reasonerName.equals("elk") )
     {
       OWLReasonerFactory rf = new ElkReasonerFactory();
-      r = rf.createReasoner(ont);
+      ElkReasonerConfiguration elkConfig = new ElkReasonerConfiguration();
+
+      elkConfig.getElkConfiguration().setParameter( ReasonerConfiguration.INCREMENTAL_MODE_ALLOWED, String.valueOf( incremental ) );
+      elkConfig.getElkConfiguration().setParameter( ReasonerConfiguration.NUM_OF_WORKING_THREADS, String.valueOf( reasonerThreads ) );
+      s.r = rf.createReasoner(s.ont, elkConfig);
     }
     else
-      r = new org.semanticweb.HermiT.Reasoner(ont);  //Hermit reasoner
+      s.r = new org.semanticweb.HermiT.Reasoner(s.ont);  //Hermit reasoner
 
-    logString( "Reasoner established.");
+    profile.end( phase );
 
     /*
-     * Precompute inferences.
+     * The indexes only read the ontology (whose own indexes are already built), so they are
+     * built while the reasoner classifies it
      */
-    logString( "Precomputing inferences...");
-
-    long startTime = System.nanoTime();
-    r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
-
-    logString( "Finished precomputing inferences (took "+(System.nanoTime()-startTime)/1000000+"ms)" );
+    java.util.concurrent.ExecutorService startupPool = Executors.newFixedThreadPool( 5 );
 
     /*
-     * Launch HTTP server
+     * Establish infrastructure for converting long URLs to short IRIs and vice versa
+     * (e.g., converting between "http://purl.org/obo/owlapi/quality#PATO_0000014" and "PATO_0000014"),
+     * and for searching for classes by label
      */
-    logString( "Initiating server...");
+    java.util.concurrent.Future<OWLEntityChecker> providers = profile.fork( startupPool, "Shortform and label providers", new java.util.concurrent.Callable<OWLEntityChecker>()
+    {
+      public OWLEntityChecker call()
+      {
+        s.shortformProvider = new BidirectionalShortFormProviderAdapter(s.manager, s.importClosure, new org.semanticweb.owlapi.util.SimpleShortFormProvider());
 
-    HttpServer server = HttpServer.create(new java.net.InetSocketAddress(port), 0 );
-    server.createContext("/subterms", new NetHandler("subterms", r, manager, ont, entityChecker, iri));
-    server.createContext("/siblings", new NetHandler("siblings", r, manager, ont, entityChecker, iri));
-    server.createContext("/parents", new NetHandler("parents", r, manager, ont, entityChecker, iri));
-    server.createContext("/children", new NetHandler("children", r, manager, ont, entityChecker, iri));
-    server.createContext("/subhierarchy", new NetHandler("subhierarchy", r, manager, ont, entityChecker, iri));
-    server.createContext("/apinatomy", new NetHandler("apinatomy", r, manager, ont, entityChecker, iri));
-    server.createContext("/eqterms", new NetHandler("eqterms", r, manager, ont, entityChecker, iri));
-    server.createContext("/addlabel", new NetHandler("addlabel", r, manager, ont, entityChecker, iri));
-    server.createContext("/terms", new NetHandler("terms", r, manager, ont, entityChecker, iri));
-    server.createContext("/instances", new NetHandler("instances", r, manager, ont, entityChecker, iri));
-    server.createContext("/labels", new NetHandler("labels", r, manager, ont, entityChecker, iri));
-    server.createContext("/search", new NetHandler("search", r, manager, ont, entityChecker, iri));
-    server.createContext("/rdfstore", new NetHandler("rdfstore", r, manager, ont, entityChecker, iri));
-    server.createContext("/test", new NetHandler("test", r, manager, ont, entityChecker, iri));
-    server.createContext("/shortestpath", new NetHandler("shortestpath", r, manager, ont, entityChecker, iri));
-    server.createContext("/generate-triples", new NetHandler("generate-triples", r, manager, ont, entityChecker, iri));
-    server.createContext("/subgraph", new NetHandler("subgraph", r, manager, ont, entityChecker, iri));
-    server.createContext("/similar_molecules", new NetHandler("similar_molecules", r, manager, ont, entityChecker, iri));
-
-    server.createContext("/gui", new NetHandler("gui", r, manager, ont, entityChecker, iri));
-
-    server.setExecutor(null);
-    server.start();
-
-    logString( "Server initiated.");
-  }
+        List<OWLAnnotationProperty> labeltypeList = new ArrayList<OWLAnnotationProperty>();
+        labeltypeList.add(rdfsLabel);
+        Map<OWLAnnotationProperty,List<String>> emptyMap = new HashMap<OWLAnnotationProperty,List<String>>();
+        AnnotationValueShortFormProvider preAnnotProvider = new AnnotationValueShortFormProvider(labeltypeList, emptyMap, s.ontSet );
+        s.annotProvider = new BidirectionalShortFormProviderAdapter(s.manager, s.importClosure, preAnnotProvider);
 
-  class NetHandler implements com.sun.net.httpserver.HttpHandler
-  {
-    String srvType;
-    OWLReasoner r;
-    OWLOntologyManager m;
-    OWLOntology o;
-    OWLEntityChecker ec;
-    IRI iri;
+        if ( !reuseIndexes )
+        {
+          s.shortforms = new java.util.concurrent.ConcurrentHashMap<String,OWLClass>();
 
-    public NetHandler(String srvType, OWLReasoner r, OWLOntologyManager m, OWLOntology o, OWLEntityChecker ec, IRI iri)
-    {
-      this.srvType = srvType;
-      this.r = r;
-      this.m = m;
-      this.o = o;
-      this.ec = ec;
-      this.iri = iri;
-    }
+          for ( OWLOntology o : s.importClosure )
+          {
+            for ( OWLClass c : o.getClassesInSignature() )
+              s.shortforms.putIfAbsent( s.shortformProvider.getShortForm( c ), c );
+          }
+        }
 
-    public void handle(HttpExchange t) throws java.io.IOException
+        return new ShortFormEntityChecker(s.shortformProvider);
+      }
+    });
+
+    java.util.concurrent.Future<CompositeIndex> composites = profile.fork( startupPool, "Indexing composite terms", new java.util.concurrent.Callable<CompositeIndex>()
     {
-      if ( srvType.equals("gui") )
+      public CompositeIndex call()
       {
-        sendGui(t);
-        return;
+        return CompositeIndex.build( s.ont );
       }
+    });
 
-      Headers requestHeaders = t.getRequestHeaders();
-      boolean fJson = ( requestHeaders.get("Accept") != null && requestHeaders.get("Accept").contains("application/json") );
-      boolean verbose = false;
-      boolean longURI = false;
+    java.util.concurrent.Future<ApinatomyIndex> apinatomy = profile.fork( startupPool, "Indexing parts", new java.util.concurrent.Callable<ApinatomyIndex>()
+    {
+      public ApinatomyIndex call()
+      {
+        return ApinatomyIndex.build( s.importClosure );
+      }
+    });
 
-      String response;
+    java.util.concurrent.Future<List<PartOfGraph.PartOf>> partOfs = profile.fork( startupPool, "Scanning part-of relations", new java.util.concurrent.Callable<List<PartOfGraph.PartOf>>()
+    {
+      public List<PartOfGraph.PartOf> call()
+      {
+        return PartOfGraph.scan( s.importClosure );
+      }
+    });
 
-      String req = t.getRequestURI().toString().substring(2+srvType.length());
+    java.util.concurrent.Future<LabelIndex> labels = null;
 
-      Map<String,String> args;
-      int qMark = req.indexOf("?");
-      if ( qMark != -1 )
+    if ( !reuseIndexes )
+    {
+      labels = profile.fork( startupPool, "Indexing labels", new java.util.concurrent.Callable<LabelIndex>()
       {
-        String rawArgs = req.substring(qMark+1);
-        req = req.substring(0,qMark);
-        args = getArgs( rawArgs );
+        public LabelIndex call()
+        {
+          LabelIndex index = LabelIndex.build( s.ont, s.importClosure, rdfsLabel );
 
-        if ( !fJson && args.containsKey( "json" ) )
-          fJson = true;
+          s.prefixIndex = PrefixIndex.build( index, s.importClosure );
+          s.fulltextIndex = FulltextIndex.build( index, s.importClosure );
 
-        if ( args.containsKey( "verbose" ) )
-        {
-          verbose = true;
-          fJson = true;
+          return index;
         }
+      });
+    }
 
-        if ( args.containsKey( "longURI" ) )
-          longURI = true;
-      }
-      else
-        args = new HashMap<String,String>();
+    startupPool.shutdown();
 
-      req = URLDecode(req);
+    /*
+     * Precompute inferences.
+     */
+    logString( "Precomputing inferences...");
 
-      if ( checkForNonEL( req, t ) )
-        return;
+    phase = profile.begin( "Classification" );
+    s.r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+    profile.end( phase );
 
-      logString( "Got request: ["+req+"]" );
-      long startTime = System.nanoTime();
+    /*
+     * Compile the inferred hierarchy for fast named-class queries
+     */
+    if ( reuseIndexes )
+    {
+      KbView v = published.get();
 
-      if ( srvType.equals("labels") || srvType.equals("search") )
-      {
-        boolean isLabels = srvType.equals("labels");
+      s.taxonomy = v.taxonomy;
+      s.labelIndex = v.labelIndex;
+      s.prefixIndex = v.prefixIndex;
+      s.fulltextIndex = v.fulltextIndex;
+      s.shortforms = v.shortforms;
+    }
+    else
+    {
+      phase = profile.begin( "Compiling taxonomy" );
+      s.taxonomy = Taxonomy.build( s.r );
+      profile.end( phase );
 
-        ArrayList<String> terms = (isLabels ? getLabels( req, o ) : SearchByLabel( req, o, verbose ));
+      logString( "Compiled taxonomy of "+s.taxonomy.size()+" nodes" );
+    }
 
-        if ( terms == null || terms.isEmpty() )
-          response = (isLabels ? "No class by that shortform." : "No class with that label.");
-        else
-          response = computeResponse( terms, fJson, false, verbose && !isLabels );
-      }
-      else
-      if ( srvType.equals("addlabel") )
-        response = computeAddlabelResponse( o, iri, m, req, fJson );
-      else
-      if ( srvType.equals("rdfstore") )
-        response = computeRdfstoreResponse( o, iri, m, ec, r, req );
-      else
-      if ( srvType.equals("apinatomy") )
-      {
-        response = computeApinatomyResponse( o, iri, m, r, req );
-        fJson = true;
-      }
-      else
-      if ( srvType.equals("generate-triples") )
-      {
-        if ( t.getRemoteAddress().getAddress().isLoopbackAddress() )
-          response = computeGenerateTriplesResponse( o, iri, m, r, req );
-        else
-          response = "{\"error\": \"Only requests originating from localhost can run generate-triples\"}";
+    /*
+     * Wait for the indexes
+     */
+    s.entityChecker = StartupProfile.join( providers );
+    s.compositeIndex = StartupProfile.join( composites );
+    s.apinatomyIndex = StartupProfile.join( apinatomy );
 
-        fJson = true;
-      }
-      else
-      if ( srvType.equals("shortestpath") )
-      {
-        response = computeShortestpathResponse( o, iri, m, r, req );
-        fJson = true;
-      }
-      else
-      if ( srvType.equals("similar_molecules") )
-      {
-        response = computeSimilarMoleculesResponse( o, iri, m, r, ec, req );
-        fJson = true;
-      }
-      else
-      if ( srvType.equals("subgraph") )
-      {
-        response = computeSubgraphResponse( o, iri, m, r, req );
-        fJson = true;
-      }
-      else
-      try
-      {
-        OWLClassExpression exp;
-        String manchesterError = "";
+    logString( "Indexed "+s.compositeIndex.size()+" composite terms" );
+    logString( "Indexed parts and members of "+s.apinatomyIndex.size()+" classes" );
 
-        if ( uclSyntax != null )
-        {
-          String lolsReply = queryURL( uclSyntax + URLEncode(req) );
+    phase = profile.begin( "Building part-of graph" );
+    s.partOf = PartOfGraph.build( StartupProfile.join( partOfs ), s.taxonomy );
+    profile.end( phase );
 
-          if ( lolsReply == null )
-          {
-            exp = parseManchester( req, o, ec );
-            if ( exp == null )
-              manchesterError = "Could not connect to LOLS for UCL syntax parsing";
-          }
-          else
-          {
-            String error = naiveJsonParse( lolsReply, "Error" );
-            if ( error != null && !error.trim().equals("") )
-            {
-              manchesterError = error.trim();
-              exp = null;
-            }
-            else
-            {
-              String ambigs = naiveJsonParse( lolsReply, "Ambiguities", "\n  [", "\n  ]" );
-              if ( ambigs != null && !ambigs.trim().equals("") )
-              {
-                manchesterError = "{\n  \"Ambiguities\":\n  [\n    " + ambigs.trim() + "\n  ]\n}";
-                exp = null;
-              }
-              else
-              {
-                String uclToManchester = naiveJsonParse( lolsReply, "Result" );
-                if ( uclToManchester == null )
+    logString( "Built part-of graph of "+s.partOf.edgeCount()+" edges" );
+
+    if ( labels != null )
+    {
+      s.labelIndex = StartupProfile.join( labels );
+      logString( "Indexed rdfs:labels of "+s.labelIndex.size()+" entities" );
+    }
+
+    return s;
+  }
+
+  /*
+   * Serve s.  At startup this happens before any request is answered from it; on reload,
+   * under the write lock.
+   */
+  void install( KbState s )
+  {
+    manager = s.manager;
+    ont = s.ont;
+    ontIri = s.iri;
+    reasoner = s.r;
+    importClosure = s.importClosure;
+    ontSet = s.ontSet;
+    shortformProvider = s.shortformProvider;
+    annotProvider = s.annotProvider;
+    compositeIndex = s.compositeIndex;
+    apinatomyIndex = s.apinatomyIndex;
+
+    KbView prev = published.get();
+    publish( new KbView( prev == null ? 0 : prev.generation + 1, s.taxonomy, s.labelIndex, s.prefixIndex, s.fulltextIndex, s.shortforms, s.partOf ) );
+
+    for ( NetHandler h : handlers )
+      h.attach( s.r, s.manager, s.ont, s.entityChecker, s.iri );
+
+    if ( reclassifier != null )
+      reclassifier.stop();
+
+    reclassifier = ( incremental && reasonerName.equals("elk") ) ? new Reclassifier( this, s.r, debounceMillis ) : null;
+  }
+
+  /*
+   * Make v the current view.  Called under the write lock (or before requests are answered),
+   * so versions are published one at a time, in order.
+   */
+  void publish( KbView v )
+  {
+    published.set( v );
+  }
+
+  /*
+   * The view to answer from: the one pinned for the current lock-free request, if any,
+   * or else the current one (which can't change while the caller holds the lock)
+   */
+  KbView view()
+  {
+    KbView v = pinned.get();
+
+    return ( v != null ) ? v : published.get();
+  }
+
+  /*
+   * POST /reload (localhost only): load and classify the ontology file again in the background,
+   * e.g. after a new release of an imported ontology has been put in place, then swap it in.
+   * Until the swap, queries are answered from the old ontology.  Changes made meanwhile are
+   * caught up from the write-ahead log; without one, they are refused until the reload is done.
+   * Needs memory for two copies of everything while it runs.
+   */
+  public String startReload()
+  {
+    if ( !reloading.compareAndSet( false, true ) )
+      return "{\"error\": \"A reload is already in progress\"}";
+
+    Thread thread = new Thread( new Runnable()
+    {
+      public void run()
+      {
+        reload();
+      }
+    }, "reload" );
+
+    thread.setDaemon( true );
+    thread.start();
+
+    return "{\"status\": \"Reloading " + escapeJSON( kbFilename ) + " in the background; see /stats for progress\"}";
+  }
+
+  void reload()
+  {
+    StartupProfile profile = new StartupProfile( "Reload" );
+    lastReload = profile;
+
+    fileLock.lock();
+
+    try
+    {
+      /*
+       * Let any change which started before the reload was noticed finish
+       */
+      kbLock.writeLock().lock();
+      kbLock.writeLock().unlock();
+
+      KbState s = loadKnowledgebase( new File( kbFilename ), profile, false );
+
+      if ( s == null )
+      {
+        logString( "Reload failed: could not load "+kbFilename+"; still serving the old ontology." );
+        return;
+      }
+
+      StartupProfile.Phase phase = profile.begin( "Swapping in the new ontology" );
+
+      /*
+       * The reasoner lock waits out any query or reclassification still using the old reasoner
+       */
+      reasonerLock.writeLock().lock();
+
+      try
+      {
+        OWLReasoner old;
+
+        kbLock.writeLock().lock();
+
+        try
+        {
+          catchUp( s );
+
+          old = reasoner;
+          install( s );
+        }
+        finally
+        {
+          kbLock.writeLock().unlock();
+        }
+
+        old.dispose();
+      }
+      finally
+      {
+        reasonerLock.writeLock().unlock();
+      }
+
+      profile.end( phase );
+      profile.finish();
+
+      if ( fastRestart )
+      {
+        kbLock.readLock().lock();
+
+        try
+        {
+          writeTaxonomySnapshot();
+        }
+        finally
+        {
+          kbLock.readLock().unlock();
+        }
+      }
+    }
+    catch ( Exception e )
+    {
+      logString( "Reload failed: "+e.getMessage()+"; still serving the old ontology." );
+      e.printStackTrace();
+    }
+    finally
+    {
+      fileLock.unlock();
+      reloading.set( false );
+    }
+  }
+
+  /*
+   * Make the OWL API build every lazily built axiom index of the given ontologies, by looking
+   * something up in each (the entities looked up don't need to be in the ontologies).  Once
+   * built, an index is only changed by changes to the ontology, which are made under the write
+   * lock, so readers can then share it.
+   */
+  static void buildOntologyIndexes( Set<OWLOntology> importClosure )
+  {
+    OWLDataFactory df = OWLManager.getOWLDataFactory();
+    IRI any = IRI.create( "urn:owlkb:index" );
+
+    OWLClass c = df.getOWLClass( any );
+    OWLObjectProperty op = df.getOWLObjectProperty( any );
+    OWLDataProperty dp = df.getOWLDataProperty( any );
+    OWLNamedIndividual i = df.getOWLNamedIndividual( any );
+    OWLAnonymousIndividual ai = df.getOWLAnonymousIndividual();
+
+    for ( OWLOntology o : importClosure )
+    {
+      o.getAxioms( AxiomType.DECLARATION );
+      o.getDeclarationAxioms( c );
+
+      o.getReferencingAxioms( c );
+      o.getReferencingAxioms( op );
+      o.getReferencingAxioms( dp );
+      o.getReferencingAxioms( i );
+      o.getReferencingAxioms( ai );
+      o.getReferencingAxioms( df.getOWLDatatype( any ) );
+      o.getReferencingAxioms( df.getOWLAnnotationProperty( any ) );
+
+      o.getAnnotationAssertionAxioms( any );
+
+      o.getAxioms( c );
+      o.getSubClassAxiomsForSubClass( c );
+      o.getSubClassAxiomsForSuperClass( c );
+      o.getEquivalentClassesAxioms( c );
+      o.getDisjointClassesAxioms( c );
+      o.getDisjointUnionAxioms( c );
+      o.getHasKeyAxioms( c );
+      o.getClassAssertionAxioms( c );
+
+      o.getObjectSubPropertyAxiomsForSubProperty( op );
+      o.getObjectSubPropertyAxiomsForSuperProperty( op );
+      o.getObjectPropertyDomainAxioms( op );
+      o.getObjectPropertyRangeAxioms( op );
+      o.getInverseObjectPropertyAxioms( op );
+      o.getEquivalentObjectPropertiesAxioms( op );
+      o.getDisjointObjectPropertiesAxioms( op );
+      o.getFunctionalObjectPropertyAxioms( op );
+      o.getInverseFunctionalObjectPropertyAxioms( op );
+      o.getSymmetricObjectPropertyAxioms( op );
+      o.getAsymmetricObjectPropertyAxioms( op );
+      o.getReflexiveObjectPropertyAxioms( op );
+      o.getIrreflexiveObjectPropertyAxioms( op );
+      o.getTransitiveObjectPropertyAxioms( op );
+
+      o.getDataSubPropertyAxiomsForSubProperty( dp );
+      o.getDataSubPropertyAxiomsForSuperProperty( dp );
+      o.getDataPropertyDomainAxioms( dp );
+      o.getDataPropertyRangeAxioms( dp );
+      o.getEquivalentDataPropertiesAxioms( dp );
+      o.getDisjointDataPropertiesAxioms( dp );
+      o.getFunctionalDataPropertyAxioms( dp );
+
+      o.getClassAssertionAxioms( i );
+      o.getDataPropertyAssertionAxioms( i );
+      o.getObjectPropertyAssertionAxioms( i );
+      o.getNegativeDataPropertyAssertionAxioms( i );
+      o.getNegativeObjectPropertyAssertionAxioms( i );
+      o.getSameIndividualAxioms( i );
+      o.getDifferentIndividualAxioms( i );
+    }
+  }
+
+  /*
+   * Apply to s the changes logged since s was loaded.  Called under the write lock, so no more can arrive.
+   */
+  void catchUp( KbState s ) throws java.io.IOException
+  {
+    if ( wal == null )
+      return;
+
+    wal.sync();
+
+    List<String[]> records = WriteAheadLog.readRecords( wal.file );
+
+    if ( records.size() <= s.walRecords )
+      return;
+
+    List<String[]> missed = records.subList( s.walRecords, records.size() );
+    List<OWLClass> defined = replayRecords( missed, s.ont, s.manager, s.importClosure, s.compositeIndex );
+
+    for ( String [] record : missed )
+    {
+      if ( record.length == 3 && record[0].equals("L") )
+      {
+        IRI labeled = IRI.create( record[1] );
+
+        s.labelIndex = s.labelIndex.withLabel( labeled, record[2] );
+        s.prefixIndex = s.prefixIndex.withLabel( labeled, record[2] );
+        s.fulltextIndex = s.fulltextIndex.withLabel( labeled, record[2] );
+      }
+    }
+
+    if ( !defined.isEmpty() )
+    {
+      s.r.flush();
+      s.r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+      s.taxonomy = s.taxonomy.withClasses( defined, s.r );
+
+      for ( OWLClass c : defined )
+        s.shortforms.putIfAbsent( s.shortformProvider.getShortForm( c ), c );
+    }
+  }
+
+  /*
+   * The HTTP server, with a handler for each endpoint, not yet started.  The handlers
+   * can't answer anything but snapshot queries until they are attached to the ontology.
+   */
+  HttpServer createServer() throws java.io.IOException
+  {
+    HttpServer server = HttpServer.create(new java.net.InetSocketAddress(port), 0 );
+    server.createContext("/subterms", handler("subterms"));
+    server.createContext("/siblings", handler("siblings"));
+    server.createContext("/parents", handler("parents"));
+    server.createContext("/children", handler("children"));
+    server.createContext("/subhierarchy", handler("subhierarchy"));
+    server.createContext("/apinatomy", handler("apinatomy"));
+    server.createContext("/eqterms", handler("eqterms"));
+    server.createContext("/addlabel", handler("addlabel"));
+    server.createContext("/terms", handler("terms"));
+    server.createContext("/instances", handler("instances"));
+    server.createContext("/labels", handler("labels"));
+    server.createContext("/search", handler("search"));
+    server.createContext("/autocomplete", handler("autocomplete"));
+    server.createContext("/fulltext", handler("fulltext"));
+    server.createContext("/rdfstore", handler("rdfstore"));
+    server.createContext("/test", handler("test"));
+    server.createContext("/subsumes", handler("subsumes"));
+    server.createContext("/count", handler("count"));
+    server.createContext("/batch", handler("batch"));
+    server.createContext("/shortestpath", handler("shortestpath"));
+    server.createContext("/generate-triples", handler("generate-triples"));
+    server.createContext("/subgraph", handler("subgraph"));
+    server.createContext("/similar_molecules", handler("similar_molecules"));
+
+    server.createContext("/stats", handler("stats"));
+    server.createContext("/reload", handler("reload"));
+
+    server.createContext("/gui", handler("gui"));
+
+    requestPool = Executors.newFixedThreadPool( numThreads );
+    server.setExecutor( requestPool );
+
+    return server;
+  }
+
+  NetHandler handler( String srvType )
+  {
+    NetHandler h = new NetHandler( srvType );
+
+    handlers.add( h );
+    return h;
+  }
+
+  /*
+   * Responses with more results than this are written straight to the client
+   * instead of being built as one String
+   */
+  static final int STREAMING_THRESHOLD = 5000;
+  static final int STREAMING_CHARS = 1 << 16;   // Likewise for Strings longer than this, and the size of the write buffer
+
+  /*
+   * A response, which may be too large to be worth building as one String.  A large
+   * response is written after the knowledgebase lock is released, so it must only use
+   * data which can't change under it (e.g. a Taxonomy or LabelIndex snapshot).
+   */
+  abstract static class Response
+  {
+    abstract void writeTo( Appendable out ) throws java.io.IOException;
+
+    boolean isLarge()
+    {
+      return true;
+    }
+
+    String asString()
+    {
+      StringBuilder sb = new StringBuilder();
+
+      try
+      {
+        writeTo( sb );
+      }
+      catch( java.io.IOException e )
+      {
+        throw new RuntimeException( e );   // StringBuilder doesn't throw
+      }
+
+      return sb.toString();
+    }
+
+    static Response of( final String text )
+    {
+      return new Response()
+      {
+        void writeTo( Appendable out ) throws java.io.IOException
+        {
+          out.append( text );
+        }
+
+        boolean isLarge()
+        {
+          return false;
+        }
+
+        String asString()
+        {
+          return text;
+        }
+      };
+    }
+  }
+
+  /*
+   * Which slice of a list of results a request wants (?offset=...&limit=...), or whether it
+   * only wants to know how many results there are (?count)
+   */
+  static class Page
+  {
+    static final Page ALL = new Page( 0, Integer.MAX_VALUE, false );
+
+    final int offset, limit;
+    final boolean countOnly;
+
+    Page( int offset, int limit, boolean countOnly )
+    {
+      this.offset = offset;
+      this.limit = limit;
+      this.countOnly = countOnly;
+    }
+
+    /*
+     * Null if offset or limit is malformed
+     */
+    static Page fromArgs( Map<String,String> args )
+    {
+      int offset = 0, limit = Integer.MAX_VALUE;
+
+      try
+      {
+        if ( args.containsKey("offset") )
+          offset = Integer.parseInt( args.get("offset") );
+
+        if ( args.containsKey("limit") )
+          limit = Integer.parseInt( args.get("limit") );
+      }
+      catch( Exception e )
+      {
+        return null;
+      }
+
+      if ( offset < 0 || limit < 0 )
+        return null;
+
+      return new Page( offset, limit, args.containsKey("count") );
+    }
+
+    /*
+     * How many results must be enumerated to fill this page
+     */
+    int end()
+    {
+      return (int) Math.min( (long) offset + limit, Integer.MAX_VALUE );
+    }
+
+    boolean isAll()
+    {
+      return offset == 0 && limit == Integer.MAX_VALUE;
+    }
+
+    ArrayList<String> slice( ArrayList<String> all )
+    {
+      if ( isAll() )
+        return all;
+
+      return new ArrayList<String>( all.subList( Math.min( offset, all.size() ), Math.min( end(), all.size() ) ) );
+    }
+  }
+
+  /*
+   * One of a number of independent pieces of work, numbered from 0
+   */
+  interface IndexedTask
+  {
+    void run( int i );
+  }
+
+  /*
+   * Run task for 0..count-1, spread over idle request threads.  The calling thread works
+   * through them too, and only waits for pieces already being worked on, so a busy pool
+   * can't stall it.  Returns false if interrupted while waiting.
+   */
+  boolean fanOut( final int count, final IndexedTask task )
+  {
+    final java.util.concurrent.atomic.AtomicInteger next = new java.util.concurrent.atomic.AtomicInteger();
+    final java.util.concurrent.CountDownLatch finished = new java.util.concurrent.CountDownLatch( count );
+
+    Runnable worker = new Runnable()
+    {
+      public void run()
+      {
+        int i;
+
+        while ( ( i = next.getAndIncrement() ) < count )
+        {
+          try
+          {
+            task.run( i );
+          }
+          finally
+          {
+            finished.countDown();
+          }
+        }
+      }
+    };
+
+    for ( int helpers = Math.min( numThreads, count ) - 1; helpers > 0; helpers-- )
+      requestPool.execute( worker );
+
+    worker.run();
+
+    try
+    {
+      finished.await();
+      return true;
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  class NetHandler implements com.sun.net.httpserver.HttpHandler
+  {
+    String srvType;
+    OWLReasoner r;
+    OWLOntologyManager m;
+    OWLOntology o;
+    OWLEntityChecker ec;
+    IRI iri;
+
+    public NetHandler(String srvType)
+    {
+      this.srvType = srvType;
+    }
+
+    /*
+     * Called once the ontology is loaded and classified, before ready is set
+     */
+    public void attach(OWLReasoner r, OWLOntologyManager m, OWLOntology o, OWLEntityChecker ec, IRI iri)
+    {
+      this.r = r;
+      this.m = m;
+      this.o = o;
+      this.ec = ec;
+      this.iri = iri;
+    }
+
+    public void handle(HttpExchange t) throws java.io.IOException
+    {
+      if ( srvType.equals("gui") )
+      {
+        sendGui(t);
+        return;
+      }
+
+      Headers requestHeaders = t.getRequestHeaders();
+      boolean fJson = ( requestHeaders.get("Accept") != null && requestHeaders.get("Accept").contains("application/json") );
+      boolean verbose = false;
+      boolean longURI = false;
+
+      String response;
+
+      String uri = t.getRequestURI().toString();
+      String req = ( uri.length() > 1+srvType.length() ) ? uri.substring(2+srvType.length()) : "";
+
+      Map<String,String> args;
+      int qMark = req.indexOf("?");
+      if ( qMark != -1 )
+      {
+        String rawArgs = req.substring(qMark+1);
+        req = req.substring(0,qMark);
+        args = getArgs( rawArgs );
+
+        if ( !fJson && args.containsKey( "json" ) )
+          fJson = true;
+
+        if ( args.containsKey( "verbose" ) )
+        {
+          verbose = true;
+          fJson = true;
+        }
+
+        if ( args.containsKey( "longURI" ) )
+          longURI = true;
+      }
+      else
+        args = new HashMap<String,String>();
+
+      req = URLDecode(req);
+
+      if ( checkForNonEL( req, t ) )
+        return;
+
+      Page page = isPageable() ? Page.fromArgs( args ) : Page.ALL;
+
+      if ( page == null )
+      {
+        sendResponse( t, "Invalid paging.  Syntax: ?offset=<number>&limit=<number>, or ?count", false );
+        return;
+      }
+
+      if ( page.countOnly )
+        fJson = true;
+
+      Subhierarchy shape = srvType.equals("subhierarchy") ? Subhierarchy.fromArgs( args, subhierarchyMaxNodes ) : null;
+
+      if ( srvType.equals("subhierarchy") && shape == null )
+      {
+        sendResponse( t, "Invalid subhierarchy.  Syntax: ?depth=<positive number>&maxNodes=<number>, and optionally ?dag or ?lazy", false );
+        return;
+      }
+
+      /*
+       * Named-class queries are answered from the current view, without taking either lock.
+       * Everything else (class expressions, and names the view doesn't know) goes on below.
+       */
+      KbView v = published.get();
+
+      if ( v != null && !isWriteRequest() && handleFromView( v, t, req, args, page, shape, fJson, verbose, longURI ) )
+        return;
+
+      if ( !ready )
+      {
+        sendStillLoading( t );
+        return;
+      }
+
+      logString( "Got request: ["+req+"]" );
+      long startTime = System.nanoTime();
+
+      /*
+       * /generate-triples exports the published taxonomy, so first let it catch up with the
+       * terms minted so far.  This must be done before taking the locks: the reclassifier
+       * needs them to publish, and would queue behind any writer queued behind us.
+       */
+      if ( reclassifier != null && srvType.equals("generate-triples") && !req.equals("status") )
+        reclassifier.awaitIdle();
+
+      String etag = null;
+      Response streamed = null;
+      TriplesExport triples = null;   // N-Triples prepared under the lock, and written after it is released
+
+      Lock reasonerGuard = !usesReasoner() ? null : ( isWriteRequest() || !concurrentReasoner() ) ? reasonerLock.writeLock() : reasonerLock.readLock();
+      Lock lock = isWriteRequest() ? kbLock.writeLock() : kbLock.readLock();
+
+      if ( reasonerGuard != null )
+        reasonerGuard.lock();
+
+      lock.lock();
+
+      try
+      {
+        String requestKey = isCacheable( t ) ? cacheKey( req, args, fJson, verbose, longURI ) : null;
+        String cacheKey = ( resultCache != null ) ? requestKey : null;
+        long cacheGeneration = published.get().generation;
+        ResultCache.Entry cached = null;
+
+        if ( requestKey != null )
+          etag = etagFor( requestKey, cacheGeneration, args );
+
+        if ( etag != null && etagMatches( requestHeaders.getFirst("If-None-Match"), etag ) )
+        {
+          response = null;   // The client's copy is still current
+          cacheKey = null;
+        }
+        else if ( cacheKey != null && ( cached = resultCache.get( cacheKey, cacheGeneration ) ) != null )
+        {
+          response = cached.response;
+          fJson = cached.fJson;
+        }
+        else
+        if ( isWriteRequest() && reloading.get() && wal == null )
+          response = "The ontology is being reloaded, and can't be changed until that has finished.  Please try again shortly.";
+        else
+        if ( srvType.equals("reload") )
+        {
+          if ( t.getRemoteAddress().getAddress().isLoopbackAddress() )
+            response = startReload();
+          else
+            response = "{\"error\": \"Only requests originating from localhost can reload the ontology\"}";
+
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("labels") || srvType.equals("search") )
+        {
+          boolean isLabels = srvType.equals("labels");
+
+          ArrayList<String> terms = (isLabels ? getLabels( req, o ) : SearchByLabel( req, o, verbose ));
+
+          if ( terms == null || terms.isEmpty() )
+            response = (isLabels ? "No class by that shortform." : "No class with that label.");
+          else
+            response = computeResponse( terms, fJson, false, verbose && !isLabels );
+        }
+        else
+        if ( srvType.equals("autocomplete") )
+        {
+          response = computeAutocompleteResponse( req, args, longURI );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("fulltext") )
+        {
+          response = computeFulltextResponse( req, args, longURI );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("batch") )
+        {
+          String body = readRequestBody( t );
+          response = ( body == null ) ? REQUEST_TOO_LARGE : computeBatchResponse( body );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("count") )
+        {
+          response = computeCountResponse( req );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("stats") )
+        {
+          response = computeStatsResponse();
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("addlabel") )
+          response = computeAddlabelResponse( o, iri, m, req, fJson );
+        else
+        if ( srvType.equals("rdfstore") )
+          response = computeRdfstoreResponse( o, iri, m, ec, r, req );
+        else
+        if ( srvType.equals("apinatomy") )
+        {
+          response = computeApinatomyResponse( o, iri, m, r, req );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("generate-triples") )
+        {
+          if ( !t.getRemoteAddress().getAddress().isLoopbackAddress() )
+            response = "{\"error\": \"Only requests originating from localhost can run generate-triples\"}";
+          else
+          if ( req.equals("status") )
+          {
+            TriplesExport last = triplesExport.get();
+            response = ( last == null ) ? "{\"error\": \"generate-triples has not been run\"}" : last.statusJson();
+          }
+          else
+          {
+            triples = startTriplesExport( args.containsKey("stream") ? null : args.containsKey("gzip") ? "triples.nt.gz" : "triples.nt" );
+            response = ( triples == null ) ? TRIPLES_BUSY : "";
+          }
+
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("eqterms") && req.equals("batch") )
+        {
+          String body = readRequestBody( t );
+          response = ( body == null ) ? REQUEST_TOO_LARGE : computeEqtermsBatchResponse( body, r, m, o, ec, iri, longURI );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("subsumes") )
+        {
+          boolean post = t.getRequestMethod().equalsIgnoreCase("POST");
+          String body = post ? readRequestBody( t ) : "";
+
+          response = ( body == null ) ? REQUEST_TOO_LARGE : computeSubsumesResponse( post ? req + "\n" + body : req );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("shortestpath") )
+        {
+          response = computeShortestpathResponse( req );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("similar_molecules") )
+        {
+          response = computeSimilarMoleculesResponse( o, iri, m, r, ec, req );
+          fJson = true;
+        }
+        else
+        if ( srvType.equals("subgraph") )
+        {
+          response = computeSubgraphResponse( req );
+          fJson = true;
+        }
+        else
+        try
+        {
+          OWLClassExpression exp;
+          String manchesterError = "";
+
+          if ( uclSyntax != null )
+          {
+            String lolsReply = queryURL( uclSyntax + URLEncode(req) );
+
+            if ( lolsReply == null )
+            {
+              exp = parseManchester( req, o, ec );
+              if ( exp == null )
+                manchesterError = "Could not connect to LOLS for UCL syntax parsing";
+            }
+            else
+            {
+              String error = naiveJsonParse( lolsReply, "Error" );
+              if ( error != null && !error.trim().equals("") )
+              {
+                manchesterError = error.trim();
+                exp = null;
+              }
+              else
+              {
+                String ambigs = naiveJsonParse( lolsReply, "Ambiguities", "\n  [", "\n  ]" );
+                if ( ambigs != null && !ambigs.trim().equals("") )
                 {
-                  manchesterError = lolsReply.trim();
+                  manchesterError = "{\n  \"Ambiguities\":\n  [\n    " + ambigs.trim() + "\n  ]\n}";
                   exp = null;
                 }
                 else
                 {
-                  exp = parseManchester( uclToManchester, o, ec );
-                  if ( exp == null )
+                  String uclToManchester = naiveJsonParse( lolsReply, "Result" );
+                  if ( uclToManchester == null )
+                  {
+                    manchesterError = lolsReply.trim();
+                    exp = null;
+                  }
+                  else
                   {
-                    String possibleError = naiveJsonParse( lolsReply, "Possible_error" );
-                    if ( possibleError != null )
-                      manchesterError = possibleError;
+                    exp = parseManchester( uclToManchester, o, ec );
+                    if ( exp == null )
+                    {
+                      String possibleError = naiveJsonParse( lolsReply, "Possible_error" );
+                      if ( possibleError != null )
+                        manchesterError = possibleError;
+                    }
                   }
                 }
               }
             }
           }
+          else
+            exp = parseManchester( req, o, ec );
+
+          if ( exp == null )
+          {
+            if ( !manchesterError.equals("") )
+              response = manchesterError;
+            else
+              response = "Malformed Manchester query";
+          }
+          else
+          {
+            if ( exp.isAnonymous() && reasonerName.equals("elk") )
+            {
+              /*
+               * ELK answers queries about complex class expressions by temporarily registering
+               * the expression inside the reasoner, so such queries must not overlap.
+               */
+              synchronized( r )
+              {
+                streamed = computeExpressionResponse( exp, fJson, longURI, verbose, page, shape, startTime );
+              }
+            }
+            else
+              streamed = computeExpressionResponse( exp, fJson, longURI, verbose, page, shape, startTime );
+
+            /*
+             * Small responses are handled (and cached) like any other; large ones are
+             * written straight to the client after the lock is released
+             */
+            if ( streamed.isLarge() )
+            {
+              response = "";
+              cacheKey = null;
+            }
+            else
+            {
+              response = streamed.asString();
+              streamed = null;
+            }
+          }
         }
-        else
-          exp = parseManchester( req, o, ec );
+        catch(Exception e)
+        {
+          response = "There was an error getting the results.";
+          cacheKey = null;
+        }
+
+        if ( cacheKey != null && cached == null )
+          resultCache.put( cacheKey, cacheGeneration, response, fJson );
+      }
+      finally
+      {
+        lock.unlock();
+
+        if ( reasonerGuard != null )
+          reasonerGuard.unlock();
+      }
+
+      if ( response == null )
+      {
+        sendNotModified( t, etag );
+        logString( "Client's copy is current (took "+(System.nanoTime() - startTime) / 1000000+"ms)." );
+        return;
+      }
+
+      /*
+       * Don't acknowledge a new term until the reasoner knows about it
+       */
+      if ( reclassifier != null && isWriteRequest() )
+      {
+        try
+        {
+          reclassifier.awaitSubmitted();
+        }
+        catch( java.util.concurrent.ExecutionException e )
+        {
+          logString( "Change not acknowledged: "+e.getCause() );
+          response = "{\"error\": \"" + escapeJSON( "The term was added to the ontology, but could not be classified (it will be with the next new term): " + e.getCause() ) + "\"}";
+          fJson = true;
+          streamed = null;
+        }
+      }
+
+      /*
+       * Don't acknowledge a change until it's on disk.  Writers which get here while the
+       * log is being fsynced share the next fsync.
+       */
+      if ( wal != null && isWriteRequest() )
+      {
+        try
+        {
+          wal.sync();
+        }
+        catch( java.io.IOException e )
+        {
+          logString( "Change not acknowledged: "+e.getMessage() );
+          response = "{\"error\": \"" + escapeJSON( "The change was made, but could not be saved to disk, so it may be lost if the server restarts before the ontology is next saved: " + e.getMessage() ) + "\"}";
+          fJson = true;
+          streamed = null;
+        }
+      }
+
+      String callback = args.get("callback"); // JSONP support
+      String jsonpHeader = ( callback != null ) ? "typeof "+callback+" === 'function' && "+callback+"(\n" : null;
 
-        if ( exp == null )
+      logString( "Transmitting response..." );
+
+      if ( streamed != null )
+        sendStreamedResponse( t, streamed, jsonpHeader, fJson, etag );
+      else
+      if ( triples != null && triples.destination == null )
+        sendTriples( t, triples, args.containsKey("gzip") );
+      else
+      {
+        if ( triples != null )
+          response = computeGenerateTriplesResponse( triples, args );
+
+        if ( jsonpHeader != null )
+          response = jsonpHeader + response + ");";
+
+        sendResponse( t, response, fJson, etag );
+      }
+
+      /*
+       * Measure computation time in ms.
+       */
+      long runTime = (System.nanoTime() - startTime) / 1000000;
+      logString( "It took "+runTime+"ms to handle the request." );
+    }
+
+    /*
+     * Answer a GET request about a named class in v (or a label lookup or search) from v
+     * alone, without taking either lock, so that it doesn't wait for a change or
+     * reclassification in progress: it sees the version published before the change, and
+     * its cached response and ETag are tagged with that version's generation.  Until the
+     * ontology is loaded and classified, v is the taxonomy snapshot, and /stats is answered
+     * here too.
+     *
+     * Returns false if the request needs the ontology or reasoner: a class expression, or a
+     * name v doesn't have (e.g. a term minted since v was published).  Those are answered
+     * under the locks like any other request, so they do wait for a change in progress, and
+     * if they need the reasoner, for a reclassification too.
+     */
+    boolean handleFromView( KbView v, HttpExchange t, String req, Map<String,String> args, Page page, Subhierarchy shape, boolean fJson, boolean verbose, boolean longURI ) throws java.io.IOException
+    {
+      if ( !t.getRequestMethod().equalsIgnoreCase("GET") )
+        return false;
+
+      boolean namedClass = ( v.classOfShortform( req.trim() ) != null );
+
+      if ( !( srvType.equals("stats") && !ready )
+      &&   !srvType.equals("autocomplete")
+      &&   !srvType.equals("fulltext")
+      &&   !srvType.equals("subsumes")
+      &&   !( srvType.equals("labels") && namedClass )
+      &&   !( srvType.equals("subhierarchy") && namedClass )
+      &&   !( ( srvType.equals("shortestpath") || srvType.equals("subgraph") ) && v.partOf != null )
+      &&   !( isPageable() && !srvType.equals("instances") && namedClass ) )
+        return false;
+
+      long startTime = System.nanoTime();
+
+      logString( "Got request (answered from generation "+v.generation+"): ["+req+"]" );
+
+      String requestKey = isCacheable( t ) ? cacheKey( req, args, fJson, verbose, longURI ) : null;
+      String etag = ( requestKey != null ) ? etagFor( requestKey, v.generation, args ) : null;
+
+      if ( etag != null && etagMatches( t.getRequestHeaders().getFirst("If-None-Match"), etag ) )
+      {
+        sendNotModified( t, etag );
+        logString( "Client's copy is current (took "+(System.nanoTime() - startTime) / 1000000+"ms)." );
+        return true;
+      }
+
+      ResultCache.Entry cached = ( resultCache != null && requestKey != null ) ? resultCache.get( requestKey, v.generation ) : null;
+      Response response;
+
+      if ( cached != null )
+      {
+        response = Response.of( cached.response );
+        fJson = cached.fJson;
+      }
+      else
+      {
+        pinned.set( v );
+
+        try
         {
-          if ( !manchesterError.equals("") )
-            response = manchesterError;
+          if ( srvType.equals("stats") )
+          {
+            response = Response.of( "{\n \"loading\": true,\n \"startup\": " + startup.statsJson().replace( "\n", "\n " ) + "\n}" );
+            fJson = true;
+          }
+          else
+          if ( srvType.equals("autocomplete") )
+          {
+            response = Response.of( computeAutocompleteResponse( req, args, longURI ) );
+            fJson = true;
+          }
+          else
+          if ( srvType.equals("fulltext") )
+          {
+            response = Response.of( computeFulltextResponse( req, args, longURI ) );
+            fJson = true;
+          }
+          else
+          if ( srvType.equals("subsumes") )
+          {
+            response = Response.of( computeSubsumesResponse( req ) );
+            fJson = true;
+          }
+          else
+          if ( srvType.equals("labels") )
+            response = Response.of( computeResponse( getLabels( req.trim(), null ), fJson, false, false ) );
           else
-            response = "Malformed Manchester query";
+          if ( srvType.equals("shortestpath") )
+          {
+            response = Response.of( computeShortestpathResponse( req ) );
+            fJson = true;
+          }
+          else
+          if ( srvType.equals("subgraph") )
+          {
+            response = Response.of( computeSubgraphResponse( req ) );
+            fJson = true;
+          }
+          else
+            response = computeExpressionResponse( v.classOfShortform( req.trim() ), fJson, longURI, verbose, page, shape, startTime );
+        }
+        catch( Exception e )
+        {
+          response = Response.of( "There was an error getting the results." );
+          requestKey = null;
         }
+        finally
+        {
+          pinned.remove();
+        }
+
+        if ( resultCache != null && requestKey != null && !response.isLarge() )
+          resultCache.put( requestKey, v.generation, response.asString(), fJson );
+      }
+
+      String callback = args.get("callback"); // JSONP support
+      String jsonpHeader = ( callback != null ) ? "typeof "+callback+" === 'function' && "+callback+"(\n" : null;
+
+      if ( response.isLarge() )
+        sendStreamedResponse( t, response, jsonpHeader, fJson, etag );
+      else
+        sendResponse( t, jsonpHeader == null ? response.asString() : jsonpHeader + response.asString() + ");", fJson, etag );
+
+      logString( "It took "+(System.nanoTime() - startTime) / 1000000+"ms to handle the request without locking." );
+      return true;
+    }
+
+    /*
+     * Until the ontology is loaded and classified, whatever handleFromView() can't answer is refused
+     */
+    void sendStillLoading( HttpExchange t ) throws java.io.IOException
+    {
+      setResponseHeaders( t, false, null );
+      t.getResponseHeaders().set( "Retry-After", "30" );
+
+      byte [] bytes = "Owlkb is still loading the ontology.  Until it has finished, only queries about named classes can be answered.".getBytes( "UTF-8" );
+
+      t.sendResponseHeaders(503,bytes.length);
+      java.io.OutputStream os = t.getResponseBody();
+      os.write(bytes);
+      os.close();
+    }
+
+    /*
+     * The ETag of the response to a request with the given cache key, computed in the given
+     * generation.  bootId distinguishes this run's ETags from those of earlier runs.
+     */
+    String etagFor( String requestKey, long generation, Map<String,String> args )
+    {
+      String callback = args.get("callback");
+
+      return "\"" + bootId + "-" + generation + "-" + Integer.toHexString( ( callback == null ? requestKey : requestKey + "|" + callback ).hashCode() ) + "\"";
+    }
+
+    /*
+     * Requests whose responses depend only on the request and the ontology
+     */
+    boolean isCacheable( HttpExchange t )
+    {
+      if ( srvType.equals("subsumes") )
+        return !t.getRequestMethod().equalsIgnoreCase("POST");
+
+      return srvType.equals("subterms")
+          || srvType.equals("siblings")
+          || srvType.equals("parents")
+          || srvType.equals("children")
+          || srvType.equals("subhierarchy")
+          || srvType.equals("terms")
+          || srvType.equals("instances")
+          || srvType.equals("labels")
+          || srvType.equals("search")
+          || srvType.equals("autocomplete")
+          || srvType.equals("fulltext")
+          || srvType.equals("count")
+          || srvType.equals("apinatomy")
+          || srvType.equals("shortestpath");
+    }
+
+    String cacheKey( String req, Map<String,String> args, boolean fJson, boolean verbose, boolean longURI )
+    {
+      StringBuilder sb = new StringBuilder( srvType );
+
+      sb.append( fJson ? "|json" : "|" ).append( verbose ? "|verbose" : "|" ).append( longURI ? "|longURI" : "|" );
+
+      for ( Map.Entry<String,String> e : new java.util.TreeMap<String,String>( args ).entrySet() )
+      {
+        if ( !e.getKey().equals("callback") )   // JSONP wrapping is applied after caching
+          sb.append( '|' ).append( e.getKey() ).append( '=' ).append( e.getValue() );
+      }
+
+      return sb.append( '|' ).append( req.trim().replaceAll( "\\s+", " " ) ).toString();
+    }
+
+    /*
+     * Requests which might add axioms to the ontology
+     */
+    boolean isWriteRequest()
+    {
+      return srvType.equals("eqterms") || srvType.equals("addlabel") || srvType.equals("test");
+    }
+
+    /*
+     * Requests which may query the reasoner, or change the ontology it reasons about
+     */
+    boolean usesReasoner()
+    {
+      return !srvType.equals("labels")
+          && !srvType.equals("search")
+          && !srvType.equals("autocomplete")
+          && !srvType.equals("fulltext")
+          && !srvType.equals("subsumes")
+          && !srvType.equals("stats")
+          && !srvType.equals("reload")
+          && !srvType.equals("apinatomy")
+          && !srvType.equals("generate-triples")
+          && !srvType.equals("shortestpath")
+          && !srvType.equals("subgraph");
+    }
+
+    /*
+     * Requests which return a list of terms, of which the client may ask for a slice or a count
+     */
+    boolean isPageable()
+    {
+      return srvType.equals("subterms")
+          || srvType.equals("siblings")
+          || srvType.equals("parents")
+          || srvType.equals("children")
+          || srvType.equals("instances")
+          || srvType.equals("terms");
+    }
+
+    Response computeExpressionResponse( OWLClassExpression exp, boolean fJson, boolean longURI, boolean verbose, Page page, final Subhierarchy shape, long startTime )
+    {
+      if ( page.countOnly )
+        return Response.of( "{\"count\": " + countResults( srvType, exp ) + "}" );
+
+      if ( srvType.equals("subterms")
+      ||   srvType.equals("siblings")
+      ||   srvType.equals("parents")
+      ||   srvType.equals("children")
+      ||   srvType.equals("eqterms")
+      ||   srvType.equals("instances")
+      ||   srvType.equals("terms") )
+      {
+        ArrayList<String> terms;
+
+        if ( srvType.equals("eqterms") )
+          terms = addTerm(exp,r,m,o,iri,verbose );
         else
+          terms = listTerms( srvType, exp, verbose, page );
+
+        if ( terms.size() <= STREAMING_THRESHOLD )
+          return Response.of( computeResponse( terms, fJson, longURI, verbose ) );
+
+        final ArrayList<String> finalTerms = terms;
+        final boolean finalJson = fJson, finalLongURI = longURI, finalVerbose = verbose;
+
+        return new Response()
         {
-          if ( srvType.equals("subterms")
-          ||   srvType.equals("siblings")
-          ||   srvType.equals("parents")
-          ||   srvType.equals("children")
-          ||   srvType.equals("eqterms")
-          ||   srvType.equals("instances")
-          ||   srvType.equals("terms") )
+          void writeTo( Appendable out ) throws java.io.IOException
           {
-            ArrayList<String> terms = null;
-
-            if ( srvType.equals("subterms") )
-              terms = getSubTerms(exp,r,false,false,verbose);
-            else if ( srvType.equals("siblings") )
-              terms = getSiblings(exp,r,false,false,verbose);
-            else if ( srvType.equals("parents") )
-              terms = getParents(exp,r,false,false,verbose);
-            else if ( srvType.equals("children") )
-              terms = getChildren(exp,r,false,false,verbose);
-            else if ( srvType.equals("eqterms") )
-              terms = addTerm(exp,r,m,o,iri,verbose );
-            else if ( srvType.equals("instances") )
-              terms = getInstances(exp,r,verbose);
-            else if ( srvType.equals("terms") )
-              terms = getTerms(exp,r,verbose);
-
-            response = computeResponse( terms, fJson, longURI, verbose );
+            writeResponse( out, finalTerms, finalJson, finalLongURI, finalVerbose );
           }
-          else if ( srvType.equals("subhierarchy") )
+        };
+      }
+      else if ( srvType.equals("subhierarchy") )
+      {
+        final KbView v = view();
+        final Taxonomy tx = v.taxonomy;
+        final LabelIndex li = v.labelIndex;
+        final int [] roots = directSubIds( tx, exp );
+
+        /*
+         * Written from the view's taxonomy alone (so each class is looked up once, and
+         * named-class requests need no lock)
+         */
+        Response fromTaxonomy = new Response()
+        {
+          void writeTo( Appendable out ) throws java.io.IOException
           {
-            response = computeSubhierarchyResponse( exp, r );
+            shape.write( out, tx, li, roots );
           }
-          else if ( srvType.equals("test") )
-            response = computeDemoResponse( exp, r, m, o, iri, startTime, fJson, verbose );
-          else
-            response = "Unrecognized request";
-        }
+        };
+
+        long size = 0;
+
+        for ( int root : roots )
+          size += 1 + tx.descendantCount( root );
+
+        return ( Math.min( size, shape.maxNodes ) <= STREAMING_THRESHOLD ) ? Response.of( fromTaxonomy.asString() ) : fromTaxonomy;
+      }
+      else if ( srvType.equals("test") )
+        return Response.of( computeDemoResponse( exp, r, m, o, iri, startTime, fJson, verbose ) );
+      else
+        return Response.of( "Unrecognized request" );
+    }
+
+    /*
+     * The taxonomy ids of the direct subclasses of exp.  They are named classes, so unless exp
+     * is in the taxonomy itself, they are found by the reasoner and then looked up there
+     * (leaving out any minted but not yet classified).
+     */
+    int [] directSubIds( Taxonomy tx, OWLClassExpression exp )
+    {
+      int id = taxonomyId( tx, exp );
+
+      if ( id != -1 )
+        return tx.children( id );
+
+      List<Integer> ids = new ArrayList<Integer>();
+
+      for ( Node<OWLClass> node : r.getSubClasses( exp, true ).getNodes() )
+      {
+        int sub = tx.idOf( node.getRepresentativeElement() );
+
+        if ( sub != -1 )
+          ids.add( sub );
+      }
+
+      int [] result = new int[ids.size()];
+
+      for ( int i = 0; i < result.length; i++ )
+        result[i] = ids.get(i);
+
+      return result;
+    }
+
+    /*
+     * The results of the given kind of (read-only) list request
+     */
+    ArrayList<String> listTerms( String kind, OWLClassExpression exp, boolean verbose, Page page )
+    {
+      if ( kind.equals("subterms") )
+        return getSubTerms(exp,r,false,false,verbose,page);
+      else if ( kind.equals("siblings") )
+        return page.slice( getSiblings(exp,r,false,false,verbose) );
+      else if ( kind.equals("parents") )
+        return page.slice( getParents(exp,r,false,false,verbose) );
+      else if ( kind.equals("children") )
+        return page.slice( getChildren(exp,r,false,false,verbose) );
+      else if ( kind.equals("instances") )
+        return getInstances(exp,r,verbose,page);
+      else if ( kind.equals("terms") )
+        return getTerms(exp,r,verbose,page);
+      else
+        return null;
+    }
+
+    /*
+     * POST /batch: a JSON list of queries, each of the form
+     *   {"op": "children", "expression": "FMA_7088", "flags": {"verbose": true, "limit": 10}}
+     * where op is parents, children, siblings, subterms, terms, instances or labels, and the
+     * optional flags are verbose, longURI, offset and limit.  Answers with a JSON list of
+     * {"op", "expression", "result"} (or "error" instead of "result"), in the same order.
+     *
+     * Each distinct expression is parsed once and each distinct query evaluated once.
+     * Queries are spread over idle request threads; the calling thread works through them
+     * too, and only waits for queries already being evaluated, so a busy pool can't stall it.
+     */
+    String computeBatchResponse( String body )
+    {
+      List<?> queries;
+
+      try
+      {
+        queries = MiniJson.asList( MiniJson.parse( body ) );
+
+        if ( queries == null )
+          return "{\"error\": \"Expected a JSON list of queries\"}";
       }
-      catch(Exception e)
+      catch( IllegalArgumentException e )
       {
-        response = "There was an error getting the results.";
+        return "{\"error\": \"" + escapeJSON( "Malformed JSON: " + e.getMessage() ) + "\"}";
       }
 
-      String callback = args.get("callback"); // JSONP support
-      if ( callback != null )
+      final List<String[]> distinct = new ArrayList<String[]>();   // { op, expression, verbose, longURI, offset, limit }
+      Map<String,Integer> indexByKey = new HashMap<String,Integer>();
+      int [] queryIndex = new int[queries.size()];
+      final Map<String,OWLClassExpression> expressions = new HashMap<String,OWLClassExpression>();
+
+      for ( int i = 0; i < queries.size(); i++ )
       {
-        String jsonpHeader = "typeof "+callback+" === 'function' && "+callback+"(\n";
-        response = jsonpHeader + response + ");";
+        String [] q = batchQuery( queries.get(i) );
+        String key = java.util.Arrays.toString( q );
+        Integer index = indexByKey.get( key );
+
+        if ( index == null )
+        {
+          index = distinct.size();
+          indexByKey.put( key, index );
+          distinct.add( q );
+
+          if ( q[0] != null && q[1] != null && !q[0].equals("labels") && !expressions.containsKey( q[1] ) )
+            expressions.put( q[1], ( nonELError( q[1] ) == null ) ? parseManchester( q[1], o, ec ) : null );
+        }
+
+        queryIndex[i] = index;
       }
 
-      logString( "Transmitting response..." );
+      final String [] results = new String[distinct.size()];
 
-      sendResponse( t, response, fJson );
+      IndexedTask evaluate = new IndexedTask()
+      {
+        public void run( int i )
+        {
+          try
+          {
+            results[i] = evaluateBatchQuery( distinct.get(i), expressions );
+          }
+          catch( Exception e )
+          {
+            results[i] = "\"error\": \"There was an error getting the results.\"";
+          }
+        }
+      };
 
       /*
-       * Measure computation time in ms.
+       * Queries to a reasoner which can't answer them concurrently are made one at a time
        */
-      long runTime = (System.nanoTime() - startTime) / 1000000;
-      logString( "It took "+runTime+"ms to handle the request." );
+      boolean finished = true;
+
+      if ( concurrentReasoner() )
+        finished = fanOut( results.length, evaluate );
+      else
+      {
+        for ( int i = 0; i < results.length; i++ )
+          evaluate.run( i );
+      }
+
+      if ( !finished )
+        return "{\"error\": \"Interrupted\"}";
+
+      StringBuilder sb = new StringBuilder( "[" );
+
+      for ( int i = 0; i < queryIndex.length; i++ )
+      {
+        String [] q = distinct.get( queryIndex[i] );
+
+        sb.append( ( i == 0 ) ? "\n {\n  " : ",\n {\n  " );
+        sb.append( "\"op\": " ).append( q[0] == null ? "null" : "\"" + escapeJSON( q[0] ) + "\"" );
+        sb.append( ",\n  \"expression\": " ).append( q[1] == null ? "null" : "\"" + escapeJSON( q[1] ) + "\"" );
+        sb.append( ",\n  " ).append( results[queryIndex[i]] ).append( "\n }" );
+      }
+
+      return sb.append( "\n]" ).toString();
+    }
+
+    /*
+     * A query from a /batch request, as { op, expression, verbose, longURI, offset, limit }
+     */
+    String [] batchQuery( Object query )
+    {
+      String [] q = new String[6];
+
+      Map<String,Object> fields = MiniJson.asObject( query );
+
+      if ( fields == null )
+        return q;
+
+      Map<String,Object> flags = MiniJson.asObject( fields.get("flags") );
+
+      if ( flags != null )
+        fields.putAll( flags );
+
+      q[0] = ( fields.get("op") instanceof String ) ? (String) fields.get("op") : null;
+      q[1] = ( fields.get("expression") instanceof String ) ? ((String) fields.get("expression")).trim() : null;
+      q[2] = String.valueOf( Boolean.TRUE.equals( fields.get("verbose") ) );
+      q[3] = String.valueOf( Boolean.TRUE.equals( fields.get("longURI") ) );
+      q[4] = ( fields.get("offset") instanceof Double ) ? String.valueOf( ((Double) fields.get("offset")).intValue() ) : "0";
+      q[5] = ( fields.get("limit") instanceof Double ) ? String.valueOf( ((Double) fields.get("limit")).intValue() ) : String.valueOf( Integer.MAX_VALUE );
+
+      return q;
+    }
+
+    /*
+     * "result": ... (or "error": ...) for one query of a /batch request
+     */
+    String evaluateBatchQuery( String [] q, Map<String,OWLClassExpression> expressions )
+    {
+      String op = q[0], expression = q[1];
+
+      if ( op == null || expression == null )
+        return "\"error\": \"Each query needs an op and an expression\"";
+
+      if ( op.equals("labels") )
+      {
+        ArrayList<String> labels = getLabels( expression, o );
+
+        if ( labels == null )
+          return "\"error\": \"No class by that shortform.\"";
+
+        StringBuilder sb = new StringBuilder( "\"result\": [" );
+
+        for ( int i = 0; i < labels.size(); i++ )
+          sb.append( i == 0 ? "\"" : ", \"" ).append( escapeJSON( labels.get(i) ) ).append( '"' );
+
+        return sb.append( ']' ).toString();
+      }
+
+      boolean verbose = Boolean.parseBoolean( q[2] ), longURI = Boolean.parseBoolean( q[3] );
+      int offset = Integer.parseInt( q[4] ), limit = Integer.parseInt( q[5] );
+
+      if ( offset < 0 || limit < 0 )
+        return "\"error\": \"offset and limit must be non-negative\"";
+
+      Page page = new Page( offset, limit, false );
+      OWLClassExpression exp = expressions.get( expression );
+
+      if ( exp == null )
+      {
+        String error = nonELError( expression );
+        return "\"error\": \"" + escapeJSON( error == null ? "Malformed Manchester query" : error ) + "\"";
+      }
+
+      ArrayList<String> terms;
+
+      if ( exp.isAnonymous() && reasonerName.equals("elk") )
+      {
+        synchronized( r )
+        {
+          terms = listTerms( op, exp, verbose, page );
+        }
+      }
+      else
+        terms = listTerms( op, exp, verbose, page );
+
+      if ( terms == null )
+        return "\"error\": \"Unknown op: " + escapeJSON( op ) + "\"";
+
+      return "\"result\": " + computeResponse( terms, true, longURI, verbose );
     }
+
+    /*
+     * How many results the given kind of list request would return, without listing them where possible
+     */
+    int countResults( String kind, OWLClassExpression exp )
+    {
+      Taxonomy tx = view().taxonomy;
+      int id = taxonomyId( tx, exp );
+
+      if ( kind.equals("subterms") )
+        return ( id != -1 ) ? tx.descendantCount(id) : r.getSubClasses(exp, false).getNodes().size();
+      else if ( kind.equals("children") )
+        return ( id != -1 ) ? tx.children(id).length : r.getSubClasses(exp, true).getNodes().size();
+      else if ( kind.equals("parents") )
+        return ( id != -1 ) ? tx.parents(id).length : r.getSuperClasses(exp, true).getNodes().size();
+      else if ( kind.equals("instances") )
+        return r.getInstances(exp, false).getNodes().size();
+      else if ( kind.equals("terms") )
+      {
+        int subterms = ( id != -1 ) ? tx.descendantCount(id) : r.getSubClasses(exp, false).getNodes().size();
+
+        return getEquivalentTerms(exp,r,false).size() + subterms;
+      }
+      else
+        return getSiblings(exp,r,false,false,false).size();
+    }
+
+    /*
+     * /count/subterms/<exp>, /count/children/<exp> or /count/instances/<exp>
+     */
+    String computeCountResponse( String req )
+    {
+      int slash = req.indexOf('/');
+      String kind = ( slash == -1 ) ? req : req.substring( 0, slash );
+
+      if ( slash == -1 || !( kind.equals("subterms") || kind.equals("children") || kind.equals("instances") ) )
+        return "{\"error\": \"Syntax: /count/subterms/<term>, /count/children/<term> or /count/instances/<term>\"}";
+
+      OWLClassExpression exp = parseManchester( req.substring( slash+1 ), o, ec );
+
+      if ( exp == null )
+        return "{\"error\": \"Malformed Manchester query\"}";
+
+      int count;
+
+      if ( exp.isAnonymous() && reasonerName.equals("elk") )
+      {
+        synchronized( r )
+        {
+          count = countResults( kind, exp );
+        }
+      }
+      else
+        count = countResults( kind, exp );
+
+      return "{\"count\": " + count + "}";
+    }
+  }
+
+  public boolean checkForNonEL( String req, HttpExchange t ) throws java.io.IOException
+  {
+    String error = nonELError( req );
+
+    if ( error == null )
+      return false;
+
+    sendResponse( t, error, false );
+    return true;
   }
 
-  public boolean checkForNonEL( String req, HttpExchange t )
+  /*
+   * Why req would make the ontology non-EL, or null if it wouldn't
+   */
+  public String nonELError( String req )
   {
     /*
      * To do: improve this function, which is currently just a bandaid
@@ -469,57 +2146,200 @@ public class Owlkb
       String lower = req.toLowerCase();
 
       if ( lower.contains(" or ") )
-      {
-        sendResponse( t, "Disjunction ('or') is forbidden because it would make the ontology non-EL.", false );
-        return true;
-      }
+        return "Disjunction ('or') is forbidden because it would make the ontology non-EL.";
       if ( lower.contains(" not ") || lower.substring(0,4).equals("not ") )
-      {
-        sendResponse( t, "Negation ('not') is forbidden because it would make the ontology non-EL.", false );
-        return true;
-      }
+        return "Negation ('not') is forbidden because it would make the ontology non-EL.";
 
-      return false;
+      return null;
     }
     catch ( Exception e )
     {
-      return false;
+      return null;
     }
   }
 
+  /*
+   * Whether the reasoner can be queried from several threads at once
+   */
+  boolean concurrentReasoner()
+  {
+    return reasonerName.equals("elk");
+  }
+
   public void sendResponse( HttpExchange t, String response, boolean fJson ) throws java.io.IOException
+  {
+    sendResponse( t, response, fJson, null );
+  }
+
+  /*
+   * If etag is given, clients may keep the response, but must revalidate it (with If-None-Match) before reuse
+   */
+  public void sendResponse( HttpExchange t, String response, boolean fJson, String etag ) throws java.io.IOException
+  {
+    setResponseHeaders( t, fJson, etag );
+
+    if ( response.length() > STREAMING_CHARS )
+    {
+      /*
+       * Encode as we go rather than holding the whole response twice over
+       */
+      t.sendResponseHeaders(200,0);
+      java.io.Writer w = responseWriter( t );
+      w.write( response );
+      w.close();
+    }
+    else
+    {
+      byte [] bytes = response.getBytes( "UTF-8" );
+
+      t.sendResponseHeaders(200,bytes.length);
+      java.io.OutputStream os = t.getResponseBody();
+      os.write(bytes);
+      os.close();
+    }
+
+    logString( "Response transmitted.");
+  }
+
+  /*
+   * Send a response with chunked transfer encoding, encoding it as it is written
+   */
+  public void sendStreamedResponse( HttpExchange t, Response response, String jsonpHeader, boolean fJson, String etag ) throws java.io.IOException
+  {
+    setResponseHeaders( t, fJson, etag );
+    t.sendResponseHeaders(200,0);
+
+    java.io.Writer w = responseWriter( t );
+
+    try
+    {
+      if ( jsonpHeader != null )
+        w.write( jsonpHeader );
+
+      response.writeTo( w );
+
+      if ( jsonpHeader != null )
+        w.write( ");" );
+    }
+    finally
+    {
+      w.close();
+    }
+
+    logString( "Response transmitted.");
+  }
+
+  static java.io.Writer responseWriter( HttpExchange t ) throws java.io.IOException
+  {
+    return new java.io.BufferedWriter( new java.io.OutputStreamWriter( t.getResponseBody(), "UTF-8" ), STREAMING_CHARS );
+  }
+
+  public void setResponseHeaders( HttpExchange t, boolean fJson, String etag )
   {
     Headers h = t.getResponseHeaders();
-    h.add("Cache-Control", "no-cache, no-store, must-revalidate");
-    h.add("Pragma", "no-cache");
-    h.add("Expires", "0");
+
+    if ( etag != null )
+    {
+      h.add("Cache-Control", "no-cache");
+      h.add("ETag", etag);
+    }
+    else
+    {
+      h.add("Cache-Control", "no-cache, no-store, must-revalidate");
+      h.add("Pragma", "no-cache");
+      h.add("Expires", "0");
+    }
 
     if ( fJson )
       h.add("Content-Type", "application/json");
+  }
+
+  public void sendNotModified( HttpExchange t, String etag ) throws java.io.IOException
+  {
+    Headers h = t.getResponseHeaders();
+    h.add("Cache-Control", "no-cache");
+    h.add("ETag", etag);
 
-    t.sendResponseHeaders(200,response.getBytes().length);
-    java.io.OutputStream os = t.getResponseBody();
-    os.write(response.getBytes());
-    os.close();
+    t.sendResponseHeaders(304,-1);
+    t.close();
+  }
 
-    logString( "Response transmitted.");
+  /*
+   * Whether an If-None-Match header names the given ETag
+   */
+  public static boolean etagMatches( String ifNoneMatch, String etag )
+  {
+    if ( ifNoneMatch == null )
+      return false;
+
+    for ( String x : ifNoneMatch.split(",") )
+    {
+      x = x.trim();
+
+      if ( x.startsWith("W/") )
+        x = x.substring(2);
+
+      if ( x.equals("*") || x.equals(etag) )
+        return true;
+    }
+
+    return false;
   }
 
   private ArrayList<String> getSubTerms(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
+  {
+    return getSubTerms( exp, r, longURI, direct, verbose, Page.ALL );
+  }
+
+  /*
+   * Only the given page of subterms is listed.  For named classes, later subterms aren't even visited.
+   */
+  private ArrayList<String> getSubTerms(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, Page page )
   {
     ArrayList<String> idList = new ArrayList<String>();
+    Taxonomy tx = view().taxonomy;
+    int id = taxonomyId( tx, exp );
+
+    if ( id != -1 )
+    {
+      int [] subs = direct ? tx.children(id) : tx.descendants(id, page.end());
+
+      for ( int i = page.offset; i < Math.min( subs.length, page.end() ); i++ )
+        classToTermlist( tx.node(subs[i]), idList, longURI, verbose );
+
+      return idList;
+    }
+
     NodeSet<OWLClass> subClasses = r.getSubClasses(exp, direct);
+    int i = 0;
 
     for ( Node<OWLClass> owlClassNode : subClasses )
-      classToTermlist( owlClassNode, idList, longURI, verbose );
+    {
+      if ( i >= page.end() )
+        break;
+
+      if ( i++ >= page.offset )
+        classToTermlist( owlClassNode, idList, longURI, verbose );
+    }
 
     return idList;
   }
 
   private ArrayList<String> getParents(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
   {
-    Set<Node<OWLClass>> parentNodes = r.getSuperClasses( exp, true ).getNodes();
     ArrayList<String> idList = new ArrayList<String>();
+    Taxonomy tx = view().taxonomy;
+    int id = taxonomyId( tx, exp );
+
+    if ( id != -1 )
+    {
+      for ( int parent : tx.parents(id) )
+        classToTermlist( tx.node(parent), idList, longURI, verbose );
+
+      return idList;
+    }
+
+    Set<Node<OWLClass>> parentNodes = r.getSuperClasses( exp, true ).getNodes();
 
     for ( Node<OWLClass> n : parentNodes )
       classToTermlist( n, idList, longURI, verbose );
@@ -529,8 +2349,19 @@ public class Owlkb
 
   private ArrayList<String> getChildren(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
   {
-    Set<Node<OWLClass>> childNodes = r.getSubClasses( exp, true ).getNodes();
     ArrayList<String> idList = new ArrayList<String>();
+    Taxonomy tx = view().taxonomy;
+    int id = taxonomyId( tx, exp );
+
+    if ( id != -1 )
+    {
+      for ( int child : tx.children(id) )
+        classToTermlist( tx.node(child), idList, longURI, verbose );
+
+      return idList;
+    }
+
+    Set<Node<OWLClass>> childNodes = r.getSubClasses( exp, true ).getNodes();
 
     for ( Node<OWLClass> n : childNodes )
       classToTermlist( n, idList, longURI, verbose );
@@ -540,7 +2371,20 @@ public class Owlkb
 
   private ArrayList<String> getSiblings(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
   {
-    Set<Node<OWLClass>> parentNodes = r.getSuperClasses( exp, true ).getNodes();
+    Taxonomy tx = view().taxonomy;
+    int id = taxonomyId( tx, exp );
+    Set<Node<OWLClass>> parentNodes;
+
+    if ( id != -1 )
+    {
+      parentNodes = new HashSet<Node<OWLClass>>();
+
+      for ( int parent : tx.parents(id) )
+        parentNodes.add( tx.node(parent) );
+    }
+    else
+      parentNodes = r.getSuperClasses( exp, true ).getNodes();
+
     HashSet<String> sibs = new HashSet<String>();
 
     ArrayList<String> retVal;
@@ -553,7 +2397,16 @@ public class Owlkb
     for ( Node<OWLClass> pnode : parentNodes )
     {
       OWLClass parent = pnode.getRepresentativeElement();
-      NodeSet<OWLClass> childNodes = r.getSubClasses( parent, true );
+      Set<OWLClass> childClasses = new HashSet<OWLClass>();
+      int parentId = (id != -1) ? tx.idOf( parent ) : -1;
+
+      if ( parentId != -1 )
+      {
+        for ( int child : tx.children(parentId) )
+          childClasses.addAll( tx.node(child).getEntities() );
+      }
+      else
+        childClasses = r.getSubClasses( parent, true ).getFlattened();
 
       String parentLabel = null, pID = null;
 
@@ -567,7 +2420,7 @@ public class Owlkb
         pID = shortUrl(parent.getIRI().toString());
       }
 
-      for ( OWLClass c : childNodes.getFlattened() )
+      for ( OWLClass c : childClasses )
       {
         String sibID = shortUrl(c.getIRI().toString());
 
@@ -596,12 +2449,24 @@ public class Owlkb
   }
 
   private ArrayList<String> getInstances(OWLClassExpression exp, OWLReasoner r, boolean verbose)
+  {
+    return getInstances( exp, r, verbose, Page.ALL );
+  }
+
+  private ArrayList<String> getInstances(OWLClassExpression exp, OWLReasoner r, boolean verbose, Page page)
   {
     ArrayList<String> idList = new ArrayList<String>();
     NodeSet<OWLNamedIndividual> inst = r.getInstances(exp, false);
+    int i = 0;
 
     for (Node<OWLNamedIndividual> ind : inst)
-      individualToTermlist( ind, idList, false, verbose );
+    {
+      if ( i >= page.end() )
+        break;
+
+      if ( i++ >= page.offset )
+        individualToTermlist( ind, idList, false, verbose );
+    }
 
     return idList;
   }
@@ -609,7 +2474,13 @@ public class Owlkb
   private ArrayList<String> getEquivalentTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose)
   {
     ArrayList<String> idList = new ArrayList<String>();
-    Node<OWLClass> equivalentClasses = r.getEquivalentClasses(exp);
+    Taxonomy tx = view().taxonomy;
+    int id = taxonomyId( tx, exp );
+
+    if ( id == -1 )
+      id = indexedCompositeId( tx, exp );
+
+    Node<OWLClass> equivalentClasses = (id != -1) ? tx.node(id) : r.getEquivalentClasses(exp);
 
     for ( OWLClass c : equivalentClasses.getEntities() )
       objToTermlist( c, idList, false, verbose );
@@ -619,101 +2490,327 @@ public class Owlkb
 
   public String labelByClass(OWLEntity c)
   {
-    for ( OWLOntology imp : importClosure )
+    return view().labelIndex.preferredLabel( c.getIRI() );
+  }
+
+  public ArrayList<String> getLabels(String shortform, OWLOntology o )
+  {
+    OWLEntity e = entityOfShortform(shortform);
+
+    if ( e == null )
+      return null;
+
+    ArrayList<String> idList = new ArrayList<String>();
+    String [] labels = view().labelIndex.labels( e.getIRI() );
+
+    if ( labels == null )
+      idList.add( "(Unlabeled class)" );   //To do: create "advanced commandline options" one of which chooses Queen's vs. American English
+    else
+      idList.addAll( java.util.Arrays.asList( labels ) );
+
+    return idList;
+  }
+
+  public ArrayList<String> SearchByLabel(String label, OWLOntology o, boolean verbose )
+  {
+    Set<OWLEntity> ents = annotProvider.getEntities(label);
+
+    if ( ents == null || ents.isEmpty() )
+      return null;
+
+    ArrayList<String> idList = new ArrayList<String>();
+
+    for ( OWLEntity e : ents )
+    {
+      if ( e.isOWLClass() && !e.asOWLClass().isAnonymous() )
+        objToTermlist( e, idList, false, verbose );
+    }
+
+    return idList;
+  }
+
+  /*
+   * Classes with a label starting with the given prefix (ignoring case), best matches first:
+   * exact matches, then shorter labels.  At most "limit" results (default 10, at most 1000).
+   */
+  public String computeAutocompleteResponse( String prefix, Map<String,String> args, boolean longURI )
+  {
+    int limit = 10;
+
+    if ( args.containsKey("limit") )
+    {
+      try
+      {
+        limit = Math.max( 1, Math.min( 1000, Integer.parseInt( args.get("limit") ) ) );
+      }
+      catch( Exception e )
+      {
+        return "{\"error\": \"limit must be a number\"}";
+      }
+    }
+
+    if ( prefix.trim().equals("") )
+      return "{\"error\": \"Syntax: /autocomplete/<prefix>?limit=<number>\"}";
+
+    ArrayList<String> rows = new ArrayList<String>();
+
+    for ( Object [] match : view().prefixIndex.complete( prefix, limit ) )
+    {
+      String theIRI = match[0].toString();
+
+      rows.add( "{\n \"term\": \"" + escapeJSON( longURI ? theIRI : shortUrl(theIRI) ) + "\",\n \"label\": \"" + escapeJSON( (String)match[1] ) + "\"\n}" );
+    }
+
+    return computeResponse( rows, true, longURI, true );
+  }
+
+  /*
+   * Classes whose labels contain the words of the query, in any order, tolerating typos
+   * (unless "exact" is given).  At most "limit" results (default 25, at most 1000).
+   */
+  public String computeFulltextResponse( String query, Map<String,String> args, boolean longURI )
+  {
+    int limit = 25;
+
+    if ( args.containsKey("limit") )
+    {
+      try
+      {
+        limit = Math.max( 1, Math.min( 1000, Integer.parseInt( args.get("limit") ) ) );
+      }
+      catch( Exception e )
+      {
+        return "{\"error\": \"limit must be a number\"}";
+      }
+    }
+
+    if ( query.trim().equals("") )
+      return "{\"error\": \"Syntax: /fulltext/<words>?limit=<number>\"}";
+
+    ArrayList<String> rows = new ArrayList<String>();
+
+    for ( Object [] match : view().fulltextIndex.search( query, limit, !args.containsKey("exact") ) )
+    {
+      String theIRI = match[0].toString();
+      String score = String.format( java.util.Locale.ROOT, "%.3f", (Double)match[2] );
+
+      rows.add( "{\n \"term\": \"" + escapeJSON( longURI ? theIRI : shortUrl(theIRI) ) + "\",\n \"label\": \"" + escapeJSON( (String)match[1] ) + "\",\n \"score\": " + score + "\n}" );
+    }
+
+    return computeResponse( rows, true, longURI, true );
+  }
+
+  public ArrayList<String> getTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose)
+  {
+    return getTerms( exp, r, verbose, Page.ALL );
+  }
+
+  /*
+   * Equivalent terms come first, then subterms, and the page is taken from that sequence
+   */
+  public ArrayList<String> getTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose, Page page)
+  {
+    ArrayList<String> equivalents = getEquivalentTerms(exp,r,verbose);
+    ArrayList<String> idList = page.slice( equivalents );
+
+    int subOffset = Math.max( 0, page.offset - equivalents.size() );
+    int subLimit = page.limit - idList.size();
+
+    if ( subLimit > 0 )
+      idList.addAll(getSubTerms(exp,r,false,false,verbose,new Page( subOffset, subLimit, false )));
+
+    return idList;
+  }
+
+  public ArrayList<String> addTerm(OWLClassExpression exp, OWLReasoner r, OWLOntologyManager mgr, OWLOntology ont, IRI iri, boolean verbose )
+  {
+    ArrayList<String> idList = getEquivalentTerms(exp,r,verbose);
+
+    if ( idList.isEmpty() && reclassifier != null )
+    {
+      /*
+       * Leave classification to the reclassifier, which batches it with any other new
+       * terms; the caller waits for it after releasing the lock.
+       */
+      OWLClass newOwlClass = reclassifier.pendingClassFor( exp );
+
+      if ( newOwlClass == null )
+      {
+        newOwlClass = df.getOWLClass(IRI.create(kbNs + mintRicordoID()));
+
+        mgr.addAxiom(ont, df.getOWLEquivalentClassesAxiom(newOwlClass, exp) );
+        compositeIndex.add( exp, newOwlClass );
+        published.get().addShortform( shortformProvider.getShortForm( newOwlClass ), newOwlClass );
+        publish( published.get().changed() );
+        maybeSaveOntology( ont, iri, mgr, "E", newOwlClass.getIRI().toString(), renderWithFullIris( exp ) );
+        reclassifier.submit( exp, newOwlClass );
+      }
+
+      objToTermlist( newOwlClass, idList, false, verbose );
+    }
+    else if(idList.isEmpty())
+    {
+      OWLClass newOwlClass = df.getOWLClass(IRI.create(kbNs + mintRicordoID()));
+
+      mgr.addAxiom(ont, df.getOWLEquivalentClassesAxiom(newOwlClass, exp) );
+      compositeIndex.add( exp, newOwlClass );
+      published.get().addShortform( shortformProvider.getShortForm( newOwlClass ), newOwlClass );
+
+      if ( reasonerName.equals("elk") )
+        r.flush();
+
+      maybeSaveOntology( ont, iri, mgr, "E", newOwlClass.getIRI().toString(), renderWithFullIris( exp ) );
+
+      objToTermlist( newOwlClass, idList, false, verbose );
+      r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+
+      publish( published.get().withClasses( java.util.Collections.singleton( newOwlClass ), r ) );
+    }
+
+    return idList;
+  }
+
+  /*
+   * POST /eqterms/batch: one Manchester expression per line.  Like /eqterms for each
+   * expression, except that all the new terms are added, classified and saved together.
+   * Responds with a JSON object mapping each expression to its term, or to an error.
+   */
+  public String computeEqtermsBatchResponse( String body, OWLReasoner r, OWLOntologyManager mgr, OWLOntology ont, OWLEntityChecker ec, IRI iri, boolean longURI )
+  {
+    Map<String,String> results = new java.util.LinkedHashMap<String,String>();
+    Map<String,OWLClass> minted = new HashMap<String,OWLClass>();   // By normalized expression
+    Map<OWLClassExpression,OWLClass> newTerms = new java.util.LinkedHashMap<OWLClassExpression,OWLClass>();
+    Set<OWLAxiom> axioms = new HashSet<OWLAxiom>();
+    List<String[]> walRecords = new ArrayList<String[]>();
+
+    for ( String line : body.split( "\n" ) )
     {
-      Set<OWLAnnotation> annots = c.getAnnotations( imp, rdfsLabel );
+      String manchester = line.trim();
+
+      if ( manchester.equals("") || results.containsKey( manchester ) )
+        continue;
+
+      String error = nonELError( manchester );
+      OWLClassExpression exp = ( error == null ) ? parseManchester( manchester, ont, ec ) : null;
+
+      if ( exp == null )
+      {
+        results.put( manchester, "{\"error\": \"" + escapeJSON( error == null ? "Malformed Manchester query" : error ) + "\"}" );
+        continue;
+      }
+
+      String key = CompositeIndex.key( exp );
+      OWLClass c = minted.get( key );
+
+      if ( c == null )
+      {
+        Taxonomy tx = view().taxonomy;
+        int id = indexedCompositeId( tx, exp );
+        Node<OWLClass> equivalents = ( id != -1 ) ? tx.node( id ) : r.getEquivalentClasses( exp );
+
+        if ( equivalents.getSize() > 0 )
+          c = equivalents.getRepresentativeElement();
+        else if ( reclassifier != null )
+          c = reclassifier.pendingClassFor( exp );
+      }
 
-      for ( OWLAnnotation a : annots )
+      if ( c == null )
       {
-        if ( a.getValue() instanceof OWLLiteral )
-          return ((OWLLiteral)a.getValue()).getLiteral();
+        c = df.getOWLClass( IRI.create( kbNs + mintRicordoID() ) );
+        minted.put( key, c );
+        newTerms.put( exp, c );
+        axioms.add( df.getOWLEquivalentClassesAxiom( c, exp ) );
+        walRecords.add( new String[] { "E", c.getIRI().toString(), renderWithFullIris( exp ) } );
       }
+
+      String term = c.toStringID();
+      results.put( manchester, "\"" + escapeJSON( longURI ? term : shortUrl( term ) ) + "\"" );
     }
 
-    return null;
-  }
+    if ( !newTerms.isEmpty() )
+    {
+      mgr.addAxioms( ont, axioms );
+      maybeSaveOntology( ont, iri, mgr, walRecords );
 
-  public ArrayList<String> getLabels(String shortform, OWLOntology o )
-  {
-    OWLEntity e = shortformProvider.getEntity(shortform);
+      for ( Map.Entry<OWLClassExpression,OWLClass> e : newTerms.entrySet() )
+      {
+        compositeIndex.add( e.getKey(), e.getValue() );
+        published.get().addShortform( shortformProvider.getShortForm( e.getValue() ), e.getValue() );
+      }
 
-    if ( e == null )
-      return null;
+      if ( reclassifier != null )
+      {
+        publish( published.get().changed() );
 
-    ArrayList<String> idList = new ArrayList<String>();
+        for ( Map.Entry<OWLClassExpression,OWLClass> e : newTerms.entrySet() )
+          reclassifier.submit( e.getKey(), e.getValue() );
+      }
+      else
+      {
+        if ( reasonerName.equals("elk") )
+          r.flush();
 
-    Set<OWLAnnotation> annots = e.getAnnotations(o, rdfsLabel );
+        r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
 
-    if ( annots.isEmpty() )
-    {
-      for ( OWLOntology imp : importClosure )
-      {
-        annots = e.getAnnotations( imp, rdfsLabel );
-        if ( !annots.isEmpty() )
-          break;
+        publish( published.get().withClasses( newTerms.values(), r ) );
       }
     }
 
-    if ( annots.isEmpty() )
-      idList.add( "(Unlabeled class)" );   //To do: create "advanced commandline options" one of which chooses Queen's vs. American English
-    else
-    for ( OWLAnnotation a : annots )
+    logString( "Batch of "+results.size()+" expressions: "+newTerms.size()+" new terms" );
+
+    StringBuilder sb = new StringBuilder( "{" );
+    boolean fFirst = true;
+
+    for ( Map.Entry<String,String> e : results.entrySet() )
     {
-      if ( a.getValue() instanceof OWLLiteral )
-        idList.add( ((OWLLiteral)a.getValue()).getLiteral() );
+      sb.append( fFirst ? "\n " : ",\n " );
+      sb.append( "\"" + escapeJSON( e.getKey() ) + "\": " + e.getValue() );
+      fFirst = false;
     }
 
-    return idList;
+    sb.append( "\n}" );
+
+    return sb.toString();
   }
 
-  public ArrayList<String> SearchByLabel(String label, OWLOntology o, boolean verbose )
+  /*
+   * A fresh RICORDO id.  Ids are timestamps in ms, bumped when several terms are minted in the same ms.
+   */
+  String mintRicordoID()
   {
-    Set<OWLEntity> ents = annotProvider.getEntities(label);
-
-    if ( ents == null || ents.isEmpty() )
-      return null;
-
-    ArrayList<String> idList = new ArrayList<String>();
-
-    for ( OWLEntity e : ents )
+    while ( true )
     {
-      if ( e.isOWLClass() && !e.asOWLClass().isAnonymous() )
-        objToTermlist( e, idList, false, verbose );
-    }
+      long last = lastRicordoID.get();
+      long next = Math.max( System.currentTimeMillis(), last + 1 );
 
-    return idList;
+      if ( lastRicordoID.compareAndSet( last, next ) )
+        return String.valueOf( next );
+    }
   }
 
-  public ArrayList<String> getTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose)
+  /*
+   * The taxonomy id of a classified term defined as exp (up to normalization), found
+   * without asking the reasoner, or -1
+   */
+  int indexedCompositeId( Taxonomy tx, OWLClassExpression exp )
   {
-    ArrayList<String> idList = new ArrayList<String>();
+    if ( tx == null || !exp.isAnonymous() || compositeIndex == null )
+      return -1;
 
-    idList.addAll(getEquivalentTerms(exp,r,verbose));
-    idList.addAll(getSubTerms(exp,r,false,false,verbose));
+    OWLClass c = compositeIndex.lookup( exp );
 
-    return idList;
+    return ( c == null ) ? -1 : tx.idOf( c );
   }
 
-  public ArrayList<String> addTerm(OWLClassExpression exp, OWLReasoner r, OWLOntologyManager mgr, OWLOntology ont, IRI iri, boolean verbose )
+  /*
+   * The taxonomy id of exp if it is a named class which the taxonomy knows about, otherwise -1
+   */
+  static int taxonomyId( Taxonomy tx, OWLClassExpression exp )
   {
-    ArrayList<String> idList = getEquivalentTerms(exp,r,verbose);
-    if(idList.isEmpty())
-    {
-      String ricordoID = String.valueOf(System.currentTimeMillis());
-      OWLClass newOwlClass = df.getOWLClass(IRI.create(kbNs + ricordoID));
-
-      mgr.addAxiom(ont, df.getOWLEquivalentClassesAxiom(newOwlClass, exp) );
-
-      if ( reasonerName.equals("elk") )
-        r.flush();
-
-      maybeSaveOntology( ont, iri, mgr );
-
-      objToTermlist( newOwlClass, idList, false, verbose );
-      r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
-    }
+    if ( tx == null || exp.isAnonymous() )
+      return -1;
 
-    return idList;
+    return tx.idOf( exp.asOWLClass() );
   }
 
   public static String shortUrl(String url)
@@ -742,8 +2839,22 @@ public class Owlkb
 
   public String computeResponse( ArrayList<String> terms, boolean fJson, boolean longURI, boolean verbose )
   {
-    StringBuilder x = new StringBuilder();
+    StringBuilder x = new StringBuilder( 32 + terms.size() * ( verbose ? 96 : 40 ) );
+
+    try
+    {
+      writeResponse( x, terms, fJson, longURI, verbose );
+    }
+    catch( java.io.IOException e )
+    {
+      throw new RuntimeException( e );   // StringBuilder doesn't throw
+    }
 
+    return x.toString();
+  }
+
+  public static void writeResponse( Appendable x, List<String> terms, boolean fJson, boolean longURI, boolean verbose ) throws java.io.IOException
+  {
     if ( verbose )
     {
       boolean fFirst = false;
@@ -761,7 +2872,7 @@ public class Owlkb
 
       x.append("\n ]\n}");
 
-      return x.toString();
+      return;
     }
 
     if ( fJson )
@@ -776,7 +2887,7 @@ public class Owlkb
         else
           x.append(",\n ");
 
-        x.append( "\"" + (longURI ? termp : shortUrl(termp)) +"\"" );
+        x.append( '"' ).append( longURI ? termp : shortUrl(termp) ).append( '"' );
       }
       x.append("]");
     }
@@ -785,12 +2896,10 @@ public class Owlkb
       x.append("<table><tr><th>ID</th></tr>");
 
       for ( String termp : terms )
-        x.append("<tr><td>" + (longURI ? termp : shortUrl(termp)) +"</td></tr>");
+        x.append("<tr><td>").append( longURI ? termp : shortUrl(termp) ).append("</td></tr>");
 
       x.append("</table>");
     }
-
-    return x.toString();
   }
 
   public void initOwlkb( String [] args )
@@ -813,6 +2922,15 @@ public class Owlkb
     getCountsFromFeather = false;
     openPhactsAppId = null;
     openPhactsAppKey = null;
+    numThreads = Runtime.getRuntime().availableProcessors();
+    reasonerThreads = Runtime.getRuntime().availableProcessors();
+    useWal = true;
+    snapshotMinutes = 10;
+    incremental = true;
+    debounceMillis = 20;
+    cacheMegabytes = 64;
+    fastRestart = true;
+    subhierarchyMaxNodes = 0;
 
     int i;
     String flag;
@@ -858,6 +2976,52 @@ public class Owlkb
         System.out.println( " interaction with a triple store.)"                    );
         System.out.println( "(Default: null)"                                       );
         System.out.println( "------------------------------------"                  );
+        System.out.println( "-threads <number>"                                     );
+        System.out.println( "(Specifies how many requests are handled at once)"     );
+        System.out.println( "(Default: number of available processors)"            );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-reasonerthreads <number>"                             );
+        System.out.println( "(Specifies how many threads ELK classifies with)"      );
+        System.out.println( "(Default: number of available processors)"            );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-wal true, or -wal false"                              );
+        System.out.println( "(Specifies whether changes are appended to a log"      );
+        System.out.println( " file, with the owlfile saved periodically, instead"   );
+        System.out.println( " of saving the owlfile after every change)"            );
+        System.out.println( "(Default: true)"                                       );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-incremental true, or -incremental false"              );
+        System.out.println( "(Specifies whether new terms are classified"           );
+        System.out.println( " incrementally and in batches; ELK only)"              );
+        System.out.println( "(Default: true)"                                       );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-debounce <milliseconds>"                              );
+        System.out.println( "(Specifies how long a batch of new terms waits"        );
+        System.out.println( " for more terms before being classified)"              );
+        System.out.println( "(Default: 20)"                                         );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-cachemb <megabytes>"                                  );
+        System.out.println( "(Specifies how much memory cached query responses"     );
+        System.out.println( " may take up; 0 disables caching)"                     );
+        System.out.println( "(Default: 64)"                                         );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-fastrestart true, or -fastrestart false"              );
+        System.out.println( "(Specifies whether the classified taxonomy is saved,"  );
+        System.out.println( " so that a restart can answer queries about named"     );
+        System.out.println( " classes before the ontology is loaded)"               );
+        System.out.println( "(Default: true)"                                       );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-subhierarchymax <number>"                             );
+        System.out.println( "(Specifies how many classes a /subhierarchy"           );
+        System.out.println( " response lists at most, unless the request gives"    );
+        System.out.println( " ?maxNodes; 0 for no limit)"                           );
+        System.out.println( "(Default: 0)"                                          );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-snapshot <minutes>"                                   );
+        System.out.println( "(Specifies how often the owlfile is saved when"        );
+        System.out.println( " changes are being logged)"                            );
+        System.out.println( "(Default: 10)"                                         );
+        System.out.println( "------------------------------------"                  );
 /*
         System.out.println( "-openPHACTSid <ID for openPHACTS API>"                 );
         System.out.println( "-openPHACTSkey <App key for openPHACTS API>"           );
@@ -871,26 +3035,249 @@ public class Owlkb
         helpOnly = true;
         return;
       }
-
-      if ( flag.equals("port") || flag.equals("p") )
+
+      if ( flag.equals("port") || flag.equals("p") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            port = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            System.out.println( "Port must be a number." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "Owlkb will listen on port "+args[++i] );
+        }
+        else
+        {
+          System.out.println( "Which port do you want the server to listen on?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("threads") || flag.equals("t") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            numThreads = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            numThreads = 0;
+          }
+
+          if ( numThreads < 1 )
+          {
+            System.out.println( "Number of threads must be a positive number." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "Owlkb will handle up to "+args[++i]+" requests at once" );
+        }
+        else
+        {
+          System.out.println( "How many threads do you want to handle requests?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("wal") )
+      {
+        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
+          useWal = true;
+        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
+        {
+          useWal = false;
+          System.out.println( "Write-ahead log: disabled (the ontology will be saved after every change)." );
+        }
+        else
+        {
+          System.out.println( "wal can be set to: true, false" );
+          helpOnly = true;
+          return;
+        }
+        i++;
+      }
+      else if ( flag.equals("incremental") )
+      {
+        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
+          incremental = true;
+        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
+        {
+          incremental = false;
+          System.out.println( "Incremental classification: disabled." );
+        }
+        else
+        {
+          System.out.println( "incremental can be set to: true, false" );
+          helpOnly = true;
+          return;
+        }
+        i++;
+      }
+      else if ( flag.equals("reasonerthreads") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            reasonerThreads = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            reasonerThreads = 0;
+          }
+
+          if ( reasonerThreads < 1 )
+          {
+            System.out.println( "Number of reasoner threads must be a positive number." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "ELK will classify with "+args[++i]+" threads" );
+        }
+        else
+        {
+          System.out.println( "How many threads do you want ELK to classify with?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("fastrestart") )
+      {
+        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
+          fastRestart = true;
+        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
+        {
+          fastRestart = false;
+          System.out.println( "Taxonomy snapshots: disabled." );
+        }
+        else
+        {
+          System.out.println( "fastrestart can be set to: true, false" );
+          helpOnly = true;
+          return;
+        }
+        i++;
+      }
+      else if ( flag.equals("debounce") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            debounceMillis = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            debounceMillis = -1;
+          }
+
+          if ( debounceMillis < 0 )
+          {
+            System.out.println( "Debounce interval must be a non-negative number of milliseconds." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "New terms will wait up to "+args[++i]+"ms to be classified together" );
+        }
+        else
+        {
+          System.out.println( "How many milliseconds should new terms wait for others to be classified with?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("subhierarchymax") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            subhierarchyMaxNodes = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            subhierarchyMaxNodes = -1;
+          }
+
+          if ( subhierarchyMaxNodes < 0 )
+          {
+            System.out.println( "Most classes in a subhierarchy must be a number (0 for no limit)." );
+            helpOnly = true;
+            return;
+          }
+          if ( subhierarchyMaxNodes == 0 )
+            System.out.println( "Subhierarchies will list as many classes as requested" );
+          else
+            System.out.println( "Subhierarchies will list at most "+subhierarchyMaxNodes+" classes" );
+          i++;
+        }
+        else
+        {
+          System.out.println( "How many classes should a subhierarchy list at most?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("cachemb") || flag.equals("cache") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            cacheMegabytes = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            cacheMegabytes = -1;
+          }
+
+          if ( cacheMegabytes < 0 )
+          {
+            System.out.println( "Cache size must be a non-negative number of megabytes." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "Owlkb will cache up to "+args[++i]+" MB of responses" );
+        }
+        else
+        {
+          System.out.println( "How many megabytes of responses do you want Owlkb to cache?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("snapshot") )
       {
         if ( i+1 < args.length )
         {
           try
           {
-            port = Integer.parseInt(args[i+1]);
+            snapshotMinutes = Integer.parseInt(args[i+1]);
           }
           catch( Exception e )
           {
-            System.out.println( "Port must be a number." );
+            snapshotMinutes = 0;
+          }
+
+          if ( snapshotMinutes < 1 )
+          {
+            System.out.println( "Snapshot interval must be a positive number of minutes." );
             helpOnly = true;
             return;
           }
-          System.out.println( "Owlkb will listen on port "+args[++i] );
+          System.out.println( "Owlkb will save logged changes every "+args[++i]+" minutes" );
         }
         else
         {
-          System.out.println( "Which port do you want the server to listen on?" );
+          System.out.println( "How many minutes do you want between saves of the ontology?" );
           helpOnly = true;
           return;
         }
@@ -1048,6 +3435,22 @@ public class Owlkb
     }
   }
 
+  public String computeStatsResponse()
+  {
+    KbView v = view();
+
+    return "{\n \"taxonomyNodes\": " + v.taxonomy.size()
+         + ",\n \"labeledEntities\": " + v.labelIndex.size()
+         + ",\n \"generation\": " + v.generation
+         + ",\n \"compositeTerms\": " + compositeIndex.size()
+         + ",\n \"incrementalClassification\": " + ( reclassifier == null ? "null" : reclassifier.statsJson().replace( "\n", "\n " ) )
+         + ",\n \"resultCache\": " + ( resultCache == null ? "null" : resultCache.statsJson().replace( "\n", "\n " ) )
+         + ",\n \"startup\": " + startup.statsJson().replace( "\n", "\n " )
+         + ",\n \"reloading\": " + reloading.get()
+         + ",\n \"lastReload\": " + ( lastReload == null ? "null" : lastReload.statsJson().replace( "\n", "\n " ) )
+         + "\n}";
+  }
+
   public String computeAddlabelResponse( OWLOntology o, IRI ontology_iri, OWLOntologyManager m, String req, boolean fJson )
   {
     int eqPos = req.indexOf('=');
@@ -1089,34 +3492,46 @@ public class Owlkb
         return "The specified class could not be found.  Please make sure you're using the shortform of the iri, e.g., RICORDO_123 instead of http://website.com/RICORDO_123";
     }
 
-    Set<OWLAnnotation> annots = e.getAnnotations(o, rdfsLabel );
+    if ( published.get().labelIndex.hasLabel( e.getIRI(), label ) )
+      return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
 
-    if ( !annots.isEmpty() )
-    {
-      for ( OWLAnnotation a : annots )
-      {
-        if ( a.getValue() instanceof OWLLiteral )
-        {
-          if ( ((OWLLiteral)a.getValue()).getLiteral().equals(label) )
-            return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
-        }
-      }
-    }
+    m.applyChange(new AddAxiom( o, labelAxiom( e.getIRI(), label ) ));
+    publish( published.get().withLabel( e.getIRI(), label ) );
+    logString( "Added rdfs:label "+label+" to class "+iri+"." );
+
+    maybeSaveOntology( o, ontology_iri, m, "L", e.getIRI().toString(), label );
+
+    return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
+  }
 
+  public OWLAxiom labelAxiom( IRI subject, String label )
+  {
     IRI rdfsLabelIRI = org.semanticweb.owlapi.vocab.OWLRDFVocabulary.RDFS_LABEL.getIRI();
     OWLAnnotation a = df.getOWLAnnotation( df.getOWLAnnotationProperty(rdfsLabelIRI), df.getOWLLiteral(label) );
-    OWLAxiom axiom = df.getOWLAnnotationAssertionAxiom(e.asOWLClass().getIRI(), a);
-    m.applyChange(new AddAxiom( o, axiom ));
-    logString( "Added rdfs:label "+label+" to class "+iri+"." );
 
-    maybeSaveOntology( o, ontology_iri, m );
+    return df.getOWLAnnotationAssertionAxiom(subject, a);
+  }
 
-    return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
+  /*
+   * Make a change durable.  If changes are being logged, the given record (which must
+   * be enough to redo the change) is queued for the log, and the ontology file is left
+   * for the next snapshot; otherwise the whole ontology is saved.
+   */
+  public void maybeSaveOntology( OWLOntology ont, IRI iri, OWLOntologyManager m, String... walRecord )
+  {
+    maybeSaveOntology( ont, iri, m, java.util.Collections.singletonList( walRecord ) );
   }
 
-  public void maybeSaveOntology( OWLOntology ont, IRI iri, OWLOntologyManager m )
+  public void maybeSaveOntology( OWLOntology ont, IRI iri, OWLOntologyManager m, List<String[]> walRecords )
   {
-    if ( hdSave )
+    if ( wal != null )
+    {
+      for ( String [] walRecord : walRecords )
+        wal.append( walRecord );
+
+      logString( "Logged "+walRecords.size()+" changes to "+wal.file+"." );
+    }
+    else if ( hdSave )
     {
       logString( "Saving ontology to hard drive..." );
 
@@ -1135,6 +3550,308 @@ public class Owlkb
       logString( "Skipping writing to hard drive (disabled by commandline argument)." );
   }
 
+  /*
+   * Save the ontology if there are logged changes, then empty the log
+   */
+  public void snapshotOntology()
+  {
+    /*
+     * While a reload is reading the file, leave it alone (the log keeps the changes until next time)
+     */
+    if ( !fileLock.tryLock() )
+      return;
+
+    kbLock.readLock().lock();
+
+    try
+    {
+      if ( !wal.hasRecords() )
+        return;
+
+      logString( "Saving ontology to hard drive..." );
+      long startTime = System.nanoTime();
+
+      manager.saveOntology(ont,ontIri);
+      wal.truncate();
+
+      logString( "Finished saving ontology to hard drive (took "+(System.nanoTime()-startTime)/1000000+"ms)." );
+
+      if ( fastRestart )
+        writeTaxonomySnapshot();
+    }
+    catch ( Exception e )
+    {
+      logString( "Could not save ontology: "+e.getMessage()+"; the changes stay in "+wal.file+" until the next attempt." );
+    }
+    finally
+    {
+      kbLock.readLock().unlock();
+      fileLock.unlock();
+    }
+  }
+
+  File walFile()
+  {
+    return new File( kbFilename + ".wal" );
+  }
+
+  File taxonomySnapshotFile()
+  {
+    return new File( kbFilename + ".taxonomy" );
+  }
+
+  /*
+   * The files whose checksum a taxonomy snapshot must match
+   */
+  File [] ontologyFiles()
+  {
+    return new File[] { new File( kbFilename ), walFile() };
+  }
+
+  /*
+   * Save the taxonomy and labels for the next start.  The caller must hold the lock, so that
+   * they match the ontology file and log.  Skipped while new terms await classification,
+   * since then the taxonomy lags behind the files.
+   */
+  public void writeTaxonomySnapshot()
+  {
+    if ( reclassifier != null && !reclassifier.isIdle() )
+      return;
+
+    try
+    {
+      long startTime = System.nanoTime();
+      KbView v = published.get();
+
+      TaxonomySnapshot.write( taxonomySnapshotFile(), TaxonomySnapshot.checksum( ontologyFiles() ), v.taxonomy, v.labelIndex, importClosure, shortformProvider );
+
+      logString( "Saved taxonomy snapshot (took "+(System.nanoTime()-startTime)/1000000+"ms)." );
+    }
+    catch ( Exception e )
+    {
+      logString( "Could not save taxonomy snapshot: "+e.getMessage() );
+    }
+  }
+
+  public void scheduleSnapshots()
+  {
+    Runnable snapshot = new Runnable()
+    {
+      public void run()
+      {
+        snapshotOntology();
+      }
+    };
+
+    java.util.concurrent.ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor( new java.util.concurrent.ThreadFactory()
+    {
+      public Thread newThread( Runnable x )
+      {
+        Thread thread = new Thread( x, "snapshotter" );
+        thread.setDaemon( true );
+        return thread;
+      }
+    });
+
+    snapshotter.scheduleWithFixedDelay( snapshot, snapshotMinutes, snapshotMinutes, java.util.concurrent.TimeUnit.MINUTES );
+    Runtime.getRuntime().addShutdownHook( new Thread( snapshot, "snapshot-on-exit" ) );
+  }
+
+  /*
+   * Redo the changes recorded in the write-ahead log.  Records are either
+   * E <class IRI> <Manchester expression with full IRIs> (from /eqterms), or
+   * L <class IRI> <label> (from /addlabel).
+   */
+  public int replayWriteAheadLog( File walFile, OWLOntology ont, OWLOntologyManager m )
+  {
+    List<String[]> records;
+
+    try
+    {
+      records = WriteAheadLog.readRecords( walFile );
+    }
+    catch ( java.io.IOException e )
+    {
+      logString( "Could not read "+walFile+": "+e.getMessage() );
+      return 0;
+    }
+
+    if ( !records.isEmpty() )
+      replayRecords( records, ont, m, ont.getImportsClosure(), null );
+
+    return records.size();
+  }
+
+  /*
+   * Redo the given log records in ont (and add the composite terms they define to index,
+   * unless it is null).  Returns the classes they define.
+   */
+  public List<OWLClass> replayRecords( List<String[]> records, OWLOntology ont, OWLOntologyManager m, Set<OWLOntology> closure, CompositeIndex index )
+  {
+    OWLEntityChecker iriChecker = new IriEntityChecker( closure );
+    List<OWLClass> defined = new ArrayList<OWLClass>();
+    int skipped = 0;
+
+    for ( String [] record : records )
+    {
+      if ( record.length == 3 && record[0].equals("E") )
+      {
+        OWLClassExpression exp = parseManchester( record[2], ont, iriChecker );
+
+        if ( exp != null )
+        {
+          OWLClass c = df.getOWLClass( IRI.create( record[1] ) );
+
+          m.addAxiom( ont, df.getOWLEquivalentClassesAxiom( c, exp ) );
+          defined.add( c );
+
+          if ( index != null )
+            index.add( exp, c );
+
+          continue;
+        }
+      }
+      else if ( record.length == 3 && record[0].equals("L") )
+      {
+        m.addAxiom( ont, labelAxiom( IRI.create( record[1] ), record[2] ) );
+        continue;
+      }
+
+      skipped++;
+    }
+
+    logString( "Replayed "+(records.size()-skipped)+" logged changes"+( skipped > 0 ? " ("+skipped+" unreadable records skipped)" : "" ) );
+
+    return defined;
+  }
+
+  /*
+   * Manchester syntax for exp, naming entities by full IRI (so that it can be parsed back by IriEntityChecker)
+   */
+  public String renderWithFullIris( OWLClassExpression exp )
+  {
+    java.io.StringWriter writer = new java.io.StringWriter();
+
+    ManchesterOWLSyntaxObjectRenderer renderer = new ManchesterOWLSyntaxObjectRenderer( writer, new ShortFormProvider()
+    {
+      public String getShortForm( OWLEntity e )
+      {
+        return e.getIRI().toQuotedString();
+      }
+
+      public void dispose()
+      {
+      }
+    });
+
+    renderer.setUseWrapping( false );
+    exp.accept( renderer );
+
+    return writer.toString();
+  }
+
+  /*
+   * Resolves names of the form <full IRI> to entities in the given import closure
+   */
+  class IriEntityChecker implements OWLEntityChecker
+  {
+    final Set<OWLOntology> closure;
+
+    IriEntityChecker( Set<OWLOntology> closure )
+    {
+      this.closure = closure;
+    }
+
+    IRI iriOf( String name )
+    {
+      if ( name.length() < 2 || name.charAt(0) != '<' || name.charAt(name.length()-1) != '>' )
+        return null;
+
+      return IRI.create( name.substring( 1, name.length()-1 ) );
+    }
+
+    public OWLClass getOWLClass( String name )
+    {
+      IRI x = iriOf( name );
+
+      if ( x == null )
+        return null;
+
+      if ( x.equals( df.getOWLThing().getIRI() ) || x.equals( df.getOWLNothing().getIRI() ) )
+        return df.getOWLClass( x );
+
+      for ( OWLOntology ont : closure )
+      {
+        if ( ont.containsClassInSignature( x ) )
+          return df.getOWLClass( x );
+      }
+
+      return null;
+    }
+
+    public OWLObjectProperty getOWLObjectProperty( String name )
+    {
+      IRI x = iriOf( name );
+
+      if ( x == null )
+        return null;
+
+      for ( OWLOntology ont : closure )
+      {
+        if ( ont.containsObjectPropertyInSignature( x ) )
+          return df.getOWLObjectProperty( x );
+      }
+
+      return null;
+    }
+
+    public OWLDataProperty getOWLDataProperty( String name )
+    {
+      IRI x = iriOf( name );
+
+      if ( x == null )
+        return null;
+
+      for ( OWLOntology ont : closure )
+      {
+        if ( ont.containsDataPropertyInSignature( x ) )
+          return df.getOWLDataProperty( x );
+      }
+
+      return null;
+    }
+
+    public OWLNamedIndividual getOWLIndividual( String name )
+    {
+      IRI x = iriOf( name );
+
+      if ( x == null )
+        return null;
+
+      for ( OWLOntology ont : closure )
+      {
+        if ( ont.containsIndividualInSignature( x ) )
+          return df.getOWLNamedIndividual( x );
+      }
+
+      return null;
+    }
+
+    public OWLDatatype getOWLDatatype( String name )
+    {
+      IRI x = iriOf( name );
+
+      return ( x == null ) ? null : df.getOWLDatatype( x );   // Built-in datatypes needn't be in any signature
+    }
+
+    public OWLAnnotationProperty getOWLAnnotationProperty( String name )
+    {
+      IRI x = iriOf( name );
+
+      return ( x == null ) ? null : df.getOWLAnnotationProperty( x );
+    }
+  }
+
   public OWLClassExpression parseManchester( String manchester, OWLOntology o, OWLEntityChecker ec )
   {
     ManchesterOWLSyntaxEditorParser parser;
@@ -1158,21 +3875,108 @@ public class Owlkb
 
   public String computeRdfstoreResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLEntityChecker ec, OWLReasoner r, String req )
   {
-    String x = fullIriFromFullOrShortIri( req, o );
-
-    if ( x != null )
-      return x;
+    String x = fullIriFromFullOrShortIri( req, o );
+
+    if ( x != null )
+      return x;
+
+    OWLClassExpression exp = parseManchester( req, o, ec );
+
+    if ( exp != null )
+    {
+      ArrayList<String> terms = getSubTerms(exp, r, true, false, false);
+
+      return computeResponse( terms, true, true, false );
+    }
+
+    return req;
+  }
+
+  /*
+   * For each pair "X,Y" in req, say whether X is a subterm of (or equivalent to) Y.
+   * Pairs are separated by semicolons or newlines, so that large batches can be POSTed.
+   * The answers come from the taxonomy's reachability labels, without listing any subterms.
+   * A single pair gets a bare true/false; several pairs get a JSON list, in which pairs
+   * mentioning an unrecognized class get null.
+   */
+  public String computeSubsumesResponse( String req )
+  {
+    Taxonomy tx = view().taxonomy;
+    StringBuilder sb = new StringBuilder();
+    String answer = null;
+    int count = 0;
+
+    for ( String pair : req.split("[;\n]") )
+    {
+      pair = pair.trim();
+
+      if ( pair.equals("") )
+        continue;
+
+      int comma = pair.indexOf(',');
+      int sub = -1, sup = -1;
+
+      if ( comma != -1 )
+      {
+        sub = taxonomyIdOfShortform( tx, pair.substring(0,comma).trim() );
+        sup = taxonomyIdOfShortform( tx, pair.substring(comma+1).trim() );
+      }
+
+      answer = ( sub == -1 || sup == -1 ) ? "null" : String.valueOf( tx.isSubsumedBy( sub, sup ) );
+
+      sb.append( count++ == 0 ? "[\n " : ",\n " );
+      sb.append( answer );
+    }
+
+    if ( count == 0 )
+      return "{\"error\": \"Syntax: /subsumes/X,Y or /subsumes/X1,Y1;X2,Y2;...\"}";
+
+    if ( count == 1 )
+    {
+      if ( answer.equals("null") )
+        return "{\"error\": \"Unrecognized class (use shortforms or full IRIs of named classes)\"}";
+
+      return answer;
+    }
+
+    sb.append( "\n]" );
+
+    return sb.toString();
+  }
+
+  /*
+   * The entity with the given shortform, or null.  Classes are looked up in the view; other
+   * entities only when answering under the lock (so, not while loading, when the view loaded
+   * from the taxonomy snapshot is all there is).
+   */
+  OWLEntity entityOfShortform( String x )
+  {
+    KbView v = view();
+    OWLClass c = ( v == null ) ? null : v.classOfShortform( x );
+
+    if ( c != null || !ready || pinned.get() != null )
+      return c;
+
+    return shortformProvider.getEntity( x );
+  }
+
+  /*
+   * The taxonomy id of the named class with the given shortform (or full IRI), or -1
+   */
+  int taxonomyIdOfShortform( Taxonomy tx, String x )
+  {
+    if ( tx == null )
+      return -1;
 
-    OWLClassExpression exp = parseManchester( req, o, ec );
+    OWLEntity e = entityOfShortform( x );
 
-    if ( exp != null )
-    {
-      ArrayList<String> terms = getSubTerms(exp, r, true, false, false);
+    if ( e == null && x.contains(":") )
+      e = df.getOWLClass( IRI.create( x ) );
 
-      return computeResponse( terms, true, true, false );
-    }
+    if ( e == null || !e.isOWLClass() )
+      return -1;
 
-    return req;
+    return tx.idOf( e.asOWLClass() );
   }
 
   public String computeSimilarMoleculesResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, OWLEntityChecker ec, String req )
@@ -1223,195 +4027,310 @@ public class Owlkb
     return "{\"error\": \"This command is currently under construction\"}";
   }
 
-  public String computeSubgraphResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
+  /*
+   * /subgraph/X,Y,...: a small set of is-a and part-of relations connecting the given terms
+   * (see PartOfGraph.connect), as
+   *   {"terms": [{"term": "fma:X", "label": ...}, ...], "relations": [{"from": "fma:X", "relation": "regional_part_of", "to": ...}, ...]}
+   * "terms" lists the given terms and the ones connecting them.
+   *
+   * Responses are cached by the set of terms, so the same terms in another order or spelling
+   * (fma:X, FMA_X, the full IRI) share a response.
+   */
+  public String computeSubgraphResponse( String req )
   {
-    req = "," + req.replace("fma:", "http://purl.org/obo/owlapi/fma%23FMA_");
-    req = req.replace("#", "%23");
+    KbView v = view();
+    String [] terms = req.split(",");
+    int [] ids = new int[terms.length];
+    int count = 0;
+
+    for ( String term : terms )
+    {
+      if ( term.trim().equals("") )
+        continue;
 
-    String featherResponse = queryFeather("subgraph", req);
+      int id = taxonomyIdOfShortform( v.taxonomy, fmaShortform( term ) );
 
-    if ( featherResponse == null )
-      return "?";
-    else
-      return featherResponse;
-  }
+      if ( id == -1 )
+        return "{\"error\": \"Unrecognized class "+escapeJSON( term.trim() )+" (use shortforms, fma:<number>, or full IRIs of named classes)\"}";
 
-  public String computeShortestpathResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
-  {
-    req = req.replace("fma:", "http://purl.org/obo/owlapi/fma%23FMA_");
-    String featherResponse = queryFeather("shortpath", req);
+      ids[count++] = id;
+    }
 
-    if ( featherResponse == null )
-      return "?";
-    else
-      return featherResponse;
-  }
+    if ( count == 0 )
+      return "{\"error\": \"Syntax: /subgraph/X,Y,...\"}";
 
-  public String computeGenerateTriplesResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
-  {
-    OWLReasoner r = reasoner;
-    java.io.PrintWriter writer;
+    ids = Arrays.copyOf( ids, count );
+    Arrays.sort( ids );
 
-    try
+    StringBuilder key = new StringBuilder( "subgraph" );
+    int last = -1;
+
+    for ( int id : ids )
     {
-      writer = new java.io.PrintWriter( "triples.nt", "UTF-8" );
+      if ( id != last )
+        key.append( '/' ).append( id );
+
+      last = id;
     }
-    catch( Exception e )
+
+    ResultCache.Entry cached = ( resultCache != null ) ? resultCache.get( key.toString(), v.generation ) : null;
+
+    if ( cached != null )
+      return cached.response;
+
+    PartOfGraph.Subgraph g = v.partOf.connect( v.taxonomy, ids );
+    StringBuilder sb = new StringBuilder( "{\n \"terms\":\n [" );
+
+    for ( int i = 0; i < g.nodes.length; i++ )
     {
-      return "{ \"error\": \"Could not open triples.nt for writing\" }";
+      sb.append( i == 0 ? "\n  {" : ",\n  {" );
+      appendGraphTerm( sb, v, g.nodes[i] );
+      sb.append( "}" );
     }
 
-    for ( OWLOntology ont : importClosure )
+    sb.append( "\n ],\n \"relations\":\n [" );
+
+    for ( int i = 0; i < g.edgeTo.length; i++ )
     {
-      Set<OWLClass> classes = ont.getClassesInSignature();
+      sb.append( i == 0 ? "\n  {\"from\": \"" : ",\n  {\"from\": \"" ).append( escapeJSON( graphTerm( v, g.edgeFrom[i] ) ) );
+      sb.append( "\", \"relation\": \"" ).append( PartOfGraph.RELATION_NAMES[g.edgeRelations[i]] );
+      sb.append( "\", \"to\": \"" ).append( escapeJSON( graphTerm( v, g.edgeTo[i] ) ) ).append( "\"}" );
+    }
 
-      for ( OWLClass c : classes )
-      {
-        NodeSet<OWLClass> subClasses = r.getSubClasses(c, true);
-        String cString = c.toStringID();
+    String response = sb.append( "\n ]\n}" ).toString();
 
-        Set<OWLIndividual> inds = c.getIndividuals(ont);
+    if ( resultCache != null )
+      resultCache.put( key.toString(), v.generation, response, true );
 
-        for ( OWLIndividual ind : inds )
-        {
-          if ( !(ind instanceof OWLNamedIndividual) )
-            continue;
+    return response;
+  }
 
-          String iString = ind.asOWLNamedIndividual().getIRI().toString();
+  /*
+   * /shortestpath/X,Y: a shortest chain of is-a and part-of relations connecting X and Y
+   * (see PartOfGraph), as
+   *   {"length": 2, "path": [{"term": "fma:X", "label": ...}, {"relation": "regional_part_of", "term": ..., "label": ...}, ...]}
+   * where each relation reads from the term before it to the term after it.  "path" is null
+   * if they aren't connected.
+   */
+  public String computeShortestpathResponse( String req )
+  {
+    KbView v = view();
+    String [] ends = req.split(",");
 
-          if ( iString.equals("") )
-            continue;
+    if ( ends.length != 2 )
+      return "{\"error\": \"Syntax: /shortestpath/X,Y\"}";
 
-          writer.println( "<" + iString + "> <http://open-physiology.org/#super-or-equal> <" + iString + "> ." );
+    int from = taxonomyIdOfShortform( v.taxonomy, fmaShortform( ends[0] ) );
+    int to = taxonomyIdOfShortform( v.taxonomy, fmaShortform( ends[1] ) );
 
-          if ( !cString.equals("") )
-            writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + iString + "> ." );
-        }
+    if ( from == -1 || to == -1 )
+      return "{\"error\": \"Unrecognized class (use shortforms, fma:<number>, or full IRIs of named classes)\"}";
 
-        if ( cString.equals("") )
-          continue;
+    PartOfGraph.Path path = v.partOf.shortestPath( v.taxonomy, from, to );
 
-        writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + cString + "> ." );
+    if ( path == null )
+      return "{\"length\": null, \"path\": null}";
 
-        for ( Node<OWLClass> subnode : subClasses )
-        {
-          OWLClass sub = subnode.getEntities().iterator().next();
+    StringBuilder sb = new StringBuilder( "{\n \"length\": " ).append( path.relations.length ).append( ",\n \"path\":\n [" );
 
-          if ( sub.isOWLNothing() )
-            continue;
+    for ( int i = 0; i < path.nodes.length; i++ )
+    {
+      sb.append( i == 0 ? "\n  {" : ",\n  {" );
 
-          writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + sub.toStringID() + "> ." );
-        }
+      if ( i > 0 )
+        sb.append( "\"relation\": \"" ).append( PartOfGraph.RELATION_NAMES[path.relations[i-1]] ).append( "\", " );
 
-        Set<OWLClassExpression> supers = c.getSuperClasses(ont);
-        for ( OWLClassExpression exp : supers )
-        {
-          if ( !(exp instanceof OWLObjectSomeValuesFrom) )
-            continue;
+      appendGraphTerm( sb, v, path.nodes[i] );
+      sb.append( "}" );
+    }
 
-          OWLRestriction restrict = (OWLRestriction) exp;
+    return sb.append( "\n ]\n}" ).toString();
+  }
 
-          Set<OWLObjectProperty> objProperties = restrict.getObjectPropertiesInSignature();
-          boolean fBad = false;
+  /*
+   * "term": ..., "label": ... for a node of the part-of graph
+   */
+  void appendGraphTerm( StringBuilder sb, KbView v, int id )
+  {
+    String label = v.labelIndex.preferredLabel( v.taxonomy.node( id ).getRepresentativeElement().getIRI() );
 
-          for ( OWLObjectProperty objPropery : objProperties )
-          {
-            if ( !objPropery.toStringID().equals( "http://purl.org/obo/owlapi/fma#regional_part_of" )
-            &&   !objPropery.toStringID().equals( "http://purl.org/obo/owlapi/fma#constitutional_part_of" ) )
-            {
-              fBad = true;
-              break;
-            }
-          }
-          if ( fBad )
-            continue;
+    sb.append( "\"term\": \"" ).append( escapeJSON( graphTerm( v, id ) ) ).append( "\"" );
 
-          Set<OWLClass> classesInSignature = restrict.getClassesInSignature();
+    if ( label != null )
+      sb.append( ", \"label\": \"" ).append( escapeJSON( label ) ).append( "\"" );
+  }
 
-          for ( OWLClass classInSignature : classesInSignature )
-          {
-            writer.println( "<" + classInSignature.toStringID() + "> <http://open-physiology.org/#super-or-equal> <" + cString + "> ." );
-            break;
-          }
+  /*
+   * A node of the part-of graph as fma:123 or its shortform
+   */
+  String graphTerm( KbView v, int id )
+  {
+    return fmaCurie( shortUrl( v.taxonomy.node( id ).getRepresentativeElement().getIRI().toString() ) );
+  }
+
+  /*
+   * fma:123 as FMA_123; other terms unchanged
+   */
+  static String fmaShortform( String term )
+  {
+    term = term.trim();
+
+    return term.startsWith( "fma:" ) ? "FMA_" + term.substring( 4 ) : term;
+  }
+
+  /*
+   * FMA_123 as fma:123; other shortforms unchanged
+   */
+  static String fmaCurie( String shortform )
+  {
+    return shortform.startsWith( "FMA_" ) ? "fma:" + shortform.substring( 4 ) : shortform;
+  }
+
+  /*
+   * /generate-triples: write the super-or-equal triples (see TriplesExport) to triples.nt, or
+   * with ?gzip, to triples.nt.gz.  With ?async, the file is written in the background, and
+   * /generate-triples/status tells how far it has got; otherwise the response is sent when
+   * the file is done.  (With ?stream, the triples are sent as the response instead; see
+   * sendTriples.)
+   *
+   * Called after the lock is released: export was prepared under it, and writing only
+   * reads what prepare() gathered.
+   */
+  public String computeGenerateTriplesResponse( final TriplesExport export, Map<String,String> args )
+  {
+    final boolean gzip = args.containsKey("gzip");
+    final String filename = export.destination;
+
+    if ( args.containsKey("async") )
+    {
+      Thread thread = new Thread( new Runnable()
+      {
+        public void run()
+        {
+          writeTriplesFile( export, gzip );
         }
-      }
+      }, "generate-triples" );
+
+      thread.setDaemon( true );
+      thread.start();
+
+      return "{ \"status\": \"Writing triples to file "+filename+" in owlkb directory in the background; see /generate-triples/status for progress\" }";
     }
 
-    writer.close();
+    if ( !writeTriplesFile( export, gzip ) )
+      return "{ \"error\": \"Could not write "+filename+": "+escapeJSON( export.error )+"\" }";
 
-    return "{ \"result\": \"Triples saved to file triples.nt in owlkb directory\" }";
+    return "{ \"result\": \"Triples saved to file "+filename+" in owlkb directory\" }";
   }
 
-  public String computeSubhierarchyResponse( OWLClassExpression exp, OWLReasoner r )
+  static final String TRIPLES_BUSY = "{ \"error\": \"Triples are already being generated; see /generate-triples/status\" }";
+
+  /*
+   * Prepare a /generate-triples run (under the lock) and make it the one /generate-triples/status
+   * reports on, or return null if the last run, to a file or streamed, hasn't finished
+   */
+  TriplesExport startTriplesExport( String destination )
   {
-    StringBuilder sb = new StringBuilder();
+    TriplesExport last = triplesExport.get();
 
-    sb.append( "{\n" );
-    appendSubhierarchy( sb, exp, r, 1 );
-    sb.append( "\n}" );
+    if ( last != null && !last.isFinished() )
+      return null;
 
-    return sb.toString();
+    TriplesExport export = TriplesExport.prepare( importClosure, published.get().taxonomy, destination );
+
+    return triplesExport.compareAndSet( last, export ) ? export : null;
   }
 
-  public void appendSubhierarchy( StringBuilder sb, OWLClassExpression exp, OWLReasoner r, int indent )
+  boolean writeTriplesFile( TriplesExport export, boolean gzip )
   {
-    appendSpaces( sb, indent );
-    sb.append( "\"subterms\":\n" );
-    appendSpaces( sb, indent );
-    sb.append( "[\n" );
+    try
+    {
+      java.io.OutputStream out = new java.io.BufferedOutputStream( new java.io.FileOutputStream( export.destination ), STREAMING_CHARS );
+
+      try
+      {
+        if ( gzip )
+          out = new java.util.zip.GZIPOutputStream( out, STREAMING_CHARS );
 
-    Set<Node<OWLClass>> nodes = r.getSubClasses( exp, true ).getNodes();
-    boolean isFirst = true;
+        export.write( out, numThreads );
+      }
+      finally
+      {
+        out.close();
+      }
 
-    for ( Node<OWLClass> node : nodes )
+      logString( "Wrote "+export.bytesWritten.get()+" bytes of triples to "+export.destination+" in "+(export.finished - export.started)+"ms" );
+      return true;
+    }
+    catch( java.io.IOException e )
     {
-      OWLClass c = node.getRepresentativeElement();
+      if ( export.error == null )
+        export.fail( e );
 
-      if ( c.isOWLNothing() )
-        continue;
+      logString( "Could not write "+export.destination+": "+e.getMessage() );
+      return false;
+    }
+  }
 
-      if ( isFirst )
-        isFirst = false;
-      else
-        sb.append( ",\n" );
+  /*
+   * /generate-triples?stream: send the triples as the response, as they're produced (gzipped,
+   * with ?gzip), instead of writing them to a file
+   */
+  public void sendTriples( HttpExchange t, TriplesExport export, boolean gzip ) throws java.io.IOException
+  {
+    Headers h = t.getResponseHeaders();
+    h.add("Cache-Control", "no-cache, no-store, must-revalidate");
+    h.add("Content-Type", "application/n-triples; charset=utf-8");
 
-      appendSpaces( sb, indent + 1 );
-      sb.append( "{\n" );
-      appendSpaces( sb, indent + 2 );
-      sb.append( "\"term\": \"" + shortUrl(c.getIRI().toString()) + "\",\n" );
+    if ( gzip )
+      h.add("Content-Encoding", "gzip");
 
-      String label = labelByClass( c );
-      if ( label != null )
-      {
-        appendSpaces( sb, indent + 2 );
-        sb.append( "\"label\": \"" + escapeJSON(label) + "\",\n" );
-      }
+    java.io.OutputStream out = null;
+
+    try
+    {
+      t.sendResponseHeaders(200,0);
+      out = t.getResponseBody();
 
-      appendSubhierarchy( sb, c, r, indent+2 );
+      if ( gzip )
+        out = new java.util.zip.GZIPOutputStream( out, STREAMING_CHARS );
 
-      sb.append( "\n" );
-      appendSpaces( sb, indent + 1 );
-      sb.append( "}" );
+      export.write( out, numThreads );
+    }
+    catch( java.io.IOException e )
+    {
+      if ( !export.isFinished() )
+        export.fail( e );   // So that the next run isn't refused
+
+      throw e;
+    }
+    finally
+    {
+      if ( out != null )
+        out.close();
     }
 
-    sb.append( "\n" );
-    appendSpaces( sb, indent );
-    sb.append( "]" );
+    logString( "Response transmitted.");
+  }
+
+  static final String [] SPACES = new String[64];
+
+  static
+  {
+    for ( int i = 0; i < SPACES.length; i++ )
+      SPACES[i] = new String( new char[i] ).replace( '\0', ' ' );
   }
 
-  public void appendSpaces( StringBuilder sb, int n )
+  static String spaces( int n )
   {
-    sb.append( String.format( "%"+n+"s", "" ) );
+    return ( n < SPACES.length ) ? SPACES[n] : new String( new char[n] ).replace( '\0', ' ' );
   }
 
   public String computeApinatomyResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
   {
-    String response = "[\n";
-    boolean isFirstResult = true;
-
     req = req.replace("fma:", "FMA_");
 
-    List<String> shortforms = java.util.Arrays.asList(req.split(","));
+    final List<String> shortforms = java.util.Arrays.asList(req.split(","));
 
     /*
      * Max size chosen based on FMA's most prolific class, FMA_21792 ("Fascia of muscle"), which has 222 subs
@@ -1419,7 +4338,7 @@ public class Owlkb
     if ( shortforms.size() > 250 )
       return "[]";
 
-    if ( req.substring(0,6).equals( "24tile" ) )
+    if ( req.startsWith( "24tile" ) )
     {
       String top24 = readFile("24tiles.dat");
 
@@ -1433,52 +4352,102 @@ public class Owlkb
       return (topTiles != null) ? topTiles : "[]";
     }
 
-    for ( String shortform : shortforms )
+    /*
+     * The tiles are independent, so they are rendered in parallel.  They don't ask the
+     * reasoner anything, so they need no lock on it.
+     */
+    final String [] tiles = new String[shortforms.size()];
+    final ApinatomyIndex index = apinatomyIndex;
+    final Taxonomy tx = view().taxonomy;
+
+    boolean finished = fanOut( tiles.length, new IndexedTask()
     {
-      OWLEntity e = shortformProvider.getEntity(shortform);
+      public void run( int i )
+      {
+        tiles[i] = computeApinatomyTile( shortforms.get(i), index, tx );
+      }
+    });
+
+    if ( !finished )
+      return "[]";
+
+    StringBuilder sb = new StringBuilder( "[\n" );
+    boolean isFirstResult = true;
 
-      if ( e == null || (!e.isOWLClass() && !e.isOWLNamedIndividual() ) )
+    for ( String tile : tiles )
+    {
+      if ( tile == null )
         continue;
 
       if ( isFirstResult )
         isFirstResult = false;
       else
-        response += ",\n";
+        sb.append( ",\n" );
+
+      sb.append( tile );
+    }
+
+    return sb.append( "\n]" ).toString();
+  }
+
+  /*
+   * One element of an /apinatomy response: the class or individual with the given shortform,
+   * its label, and its subclasses, parts and members.  Null if there is no such class or individual.
+   * The subclasses are the direct subclasses in tx, so a term minted by /eqterms has none
+   * until it has been classified.
+   */
+  String computeApinatomyTile( String shortform, ApinatomyIndex index, Taxonomy tx )
+  {
+    OWLEntity e = shortformProvider.getEntity(shortform);
 
-      response += "  {\n    \"_id\": \"" + escapeJSON(shortform) + "\",\n";
+    if ( e == null || (!e.isOWLClass() && !e.isOWLNamedIndividual() ) )
+      return null;
 
-      String theLabel = getOneRdfsLabel( e, o );
+    StringBuilder sb = new StringBuilder( 256 );
 
-      if ( theLabel == null )
-        theLabel = shortform;
+    sb.append( "  {\n    \"_id\": \"" ).append( escapeJSON(shortform) ).append( "\",\n" );
 
-      response += "    \"name\": \"" + escapeJSON(theLabel) + "\",\n    \"sub\":\n    [\n";
+    String theLabel = getOneRdfsLabel( e, null );
 
-      if ( e.isOWLClass() )
-      {
-        List<ApinatomySub> subs = getApinatomySubs(e, reasoner, o);
-        boolean isFirstSub = true;
+    if ( theLabel == null )
+      theLabel = shortform;
 
-        for ( ApinatomySub sub : subs )
-        {
-          if ( isFirstSub )
-            isFirstSub = false;
-          else
-            response += ",\n";
+    sb.append( "    \"name\": \"" ).append( escapeJSON(theLabel) ).append( "\",\n    \"sub\":\n    [\n" );
 
-          response += "      {\n        \"type\": \"" + escapeJSON(sub.type) + "\",\n";
-          response += "        \"entity\":\n        {\n          \"_id\": \"" + escapeJSON(sub.id) + "\"\n        }\n      }";
-        }
+    if ( e.isOWLClass() )
+    {
+      OWLClass c = e.asOWLClass();
+      boolean isFirstSub = true;
+      int id = tx.idOf( c );
+
+      for ( int sub : ( id == -1 ) ? Taxonomy.NONE : tx.children( id ) )
+      {
+        if ( sub == tx.bottom )
+          continue;
+
+        appendApinatomySub( sb, shortUrl( tx.node(sub).getRepresentativeElement().toStringID() ), "subclass", isFirstSub );
+        isFirstSub = false;
       }
 
-      response += "\n    ]\n  }";
+      for ( ApinatomyIndex.Sub sub : index.subs( c ) )
+      {
+        appendApinatomySub( sb, sub.id, sub.type, isFirstSub );
+        isFirstSub = false;
+      }
     }
 
-    response = response.replace( "FMA_", "fma:" );
+    sb.append( "\n    ]\n  }" );
 
-    response += "\n]";
+    return sb.toString().replace( "FMA_", "fma:" );
+  }
 
-    return response;
+  static void appendApinatomySub( StringBuilder sb, String id, String type, boolean isFirstSub )
+  {
+    if ( !isFirstSub )
+      sb.append( ",\n" );
+
+    sb.append( "      {\n        \"type\": \"" ).append( escapeJSON(type) ).append( "\",\n" );
+    sb.append( "        \"entity\":\n        {\n          \"_id\": \"" ).append( escapeJSON(id) ).append( "\"\n        }\n      }" );
   }
 
   public String queryURL(String urlString)
@@ -1500,13 +4469,12 @@ public class Owlkb
       r = new java.io.InputStreamReader(con.getInputStream(), "UTF-8");
       buf = new StringBuilder();
 
-      while (true)
-      {
-        int ch = r.read();
-        if (ch < 0)
-          break;
-        buf.append((char) ch);
-      }
+      char [] chunk = new char[8192];
+      int n;
+
+      while ( (n = r.read( chunk )) != -1 )
+        buf.append( chunk, 0, n );
+
       return buf.toString();
     }
     catch(Exception e)
@@ -1515,117 +4483,9 @@ public class Owlkb
     }
   }
 
-  public String queryFeather( String command, String x )
-  {
-    return queryURL("http://open-physiology.org:5053/"+command+"/"+x);
-  }
-
-  public List<ApinatomySub> getApinatomySubs( OWLEntity e, OWLReasoner r, OWLOntology o )
-  {
-    List<ApinatomySub> response = new ArrayList<ApinatomySub>();
-
-    if ( !( e instanceof OWLClass ) )
-      return response;
-
-    OWLClass c = e.asOWLClass();
-
-    ArrayList<String> subclassList = getSubTerms(c, r, false, true, false);
-
-    for ( String subclass : subclassList )
-    {
-      String theID = shortUrl( subclass );
-
-      if ( !theID.equals( "Nothing" ) )
-        response.add( new ApinatomySub( theID, "subclass" ) );
-    }
-
-    for ( OWLOntology imp : importClosure )
-    {
-      Set<OWLClassExpression> supers = c.getSuperClasses(imp);
-
-      for ( OWLClassExpression exp : supers )
-      {
-        if ( !( exp instanceof OWLObjectSomeValuesFrom ) )
-          continue;
-
-        String type = null;
-        OWLRestriction restrict = (OWLRestriction) exp;
-        Set<OWLObjectProperty> objProperties = restrict.getObjectPropertiesInSignature();
-
-        for ( OWLObjectProperty objPropery : objProperties )
-        {
-          String objPropertyShort = shortUrl( objPropery.toStringID() );
-
-          if ( objPropertyShort.equals( "regional_part" ) )
-            type = "regional part";
-          else
-          if ( objPropertyShort.equals( "constitutional_part" ) )
-            type = "constitutional part";
-
-          break;
-        }
-
-        if ( type == null )
-          continue;
-
-        Set<OWLClass> classesInSignature = restrict.getClassesInSignature();
-        for ( OWLClass classInSignature : classesInSignature )
-        {
-          response.add( new ApinatomySub( shortUrl(classInSignature.toStringID()), type ) );
-          break;
-        }
-      }
-
-      Set<OWLIndividual> inds = c.getIndividuals(imp);
-
-      for ( OWLIndividual ind : inds )
-      {
-        if ( !(ind instanceof OWLNamedIndividual) )
-          continue;
-
-        response.add( new ApinatomySub( shortUrl( ind.asOWLNamedIndividual().getIRI().toString() ), "subclass" ) );
-      }
-    }
-
-    return response;
-  }
-
-  class ApinatomySub
-  {
-    public String id;
-    public String type;
-
-    public ApinatomySub(String id, String type)
-    {
-      this.id = id;
-      this.type = type;
-    }
-  }
-
   public String getOneRdfsLabel( OWLEntity e, OWLOntology o )
   {
-    Set<OWLAnnotation> annots = e.getAnnotations(o, rdfsLabel);
-
-    if ( annots.isEmpty() )
-    {
-      for ( OWLOntology imp : importClosure )
-      {
-        annots = e.getAnnotations( imp, rdfsLabel );
-        if ( !annots.isEmpty() )
-          break;
-      }
-    }
-
-    if ( annots.isEmpty() )
-      return null;
-
-    for ( OWLAnnotation a : annots )
-    {
-      if ( a.getValue() instanceof OWLLiteral )
-        return ((OWLLiteral)a.getValue()).getLiteral();
-    }
-
-    return null;
+    return view().labelIndex.preferredLabel( e.getIRI() );
   }
 
   public static String escapeJSON(String s)
@@ -1750,18 +4610,17 @@ public class Owlkb
 
     if ( verbose )
     {
-      StringBuilder sb = new StringBuilder();
+      String label = labelByClass(c);
+      StringBuilder sb = new StringBuilder( 32 + theIRI.length() + ( label == null ? 4 : label.length() + 2 ) );
 
       sb.append( "{\n \"term\": \"" );
       sb.append( theIRI );
       sb.append( "\",\n \"label\": " );
 
-      String label = labelByClass(c);
-
       if ( label == null )
         sb.append( "null" );
       else
-        sb.append( "\"" + escapeJSON(label) + "\"" );
+        sb.append( '"' ).append( escapeJSON(label) ).append( '"' );
 
       sb.append( "\n}" );
 
@@ -1907,6 +4766,37 @@ public class Owlkb
     }
   }
 
+  static final int MAX_REQUEST_BODY = 8 << 20;   // Bytes
+  static final String REQUEST_TOO_LARGE = "{\"error\": \"The request body is larger than " + ( MAX_REQUEST_BODY >> 20 ) + " MB\"}";
+
+  /*
+   * The request body, or null if it is longer than MAX_REQUEST_BODY
+   */
+  static String readRequestBody( HttpExchange t ) throws java.io.IOException
+  {
+    java.io.InputStream is = t.getRequestBody();
+    java.io.ByteArrayOutputStream buf = new java.io.ByteArrayOutputStream();
+    byte [] chunk = new byte[8192];
+    int n;
+
+    try
+    {
+      while ( (n = is.read(chunk)) != -1 )
+      {
+        if ( buf.size() + n > MAX_REQUEST_BODY )
+          return null;
+
+        buf.write( chunk, 0, n );
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+
+    return buf.toString( "UTF-8" );
+  }
+
   static String readFile(String filename)
   {
     try
@@ -0,0 +1,538 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLObjectProperty;
+import org.semanticweb.owlapi.model.OWLObjectSomeValuesFrom;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
+
+/*
+ * The anatomy graph for /shortestpath and /subgraph: taxonomy nodes, joined by the is-a
+ * edges of the taxonomy and by the part-of edges asserted in the ontology,
+ *
+ *   C SubClassOf regional_part_of some W         C is a regional part of W
+ *   C SubClassOf constitutional_part_of some W   C is a constitutional part of W
+ *
+ * (the same edges /generate-triples writes out).  Part-of edges are kept CSR-style over
+ * taxonomy ids, in both directions; is-a edges are read from the taxonomy itself.  Taxonomy
+ * ids are stable when classes are added, so a graph stays valid for the patched copies of
+ * the taxonomy it was built from (new composite terms get is-a edges only), until a reload.
+ *
+ * Paths are found by bidirectional breadth-first search, treating every edge as undirected,
+ * but never passing through owl:Thing or owl:Nothing, which would connect everything.
+ * Subgraphs connecting several terms are grown from one of them by repeatedly adding the
+ * shortest path from what has been connected so far to the nearest term not yet connected
+ * (the Takahashi-Matsuyama approximation of the smallest Steiner tree, within twice its size).
+ */
+public class PartOfGraph
+{
+  static final String REGIONAL_PART_OF = "http://purl.org/obo/owlapi/fma#regional_part_of";
+  static final String CONSTITUTIONAL_PART_OF = "http://purl.org/obo/owlapi/fma#constitutional_part_of";
+
+  /*
+   * Relations, read from one node of an edge to the other.  Each is paired with its inverse,
+   * which differs in the lowest bit.
+   */
+  static final byte SUBCLASS_OF = 0, SUPERCLASS_OF = 1;
+  static final byte REGIONAL_PART = 2, HAS_REGIONAL_PART = 3;
+  static final byte CONSTITUTIONAL_PART = 4, HAS_CONSTITUTIONAL_PART = 5;
+  static final String [] RELATION_NAMES = { "subclass_of", "superclass_of", "regional_part_of", "has_regional_part", "constitutional_part_of", "has_constitutional_part" };
+
+  final int n;   // Size of the taxonomy the graph was built from
+  final int [] wholeStart, wholeIds;   // Wholes of id are wholeIds[wholeStart[id]..wholeStart[id+1]]
+  final byte [] wholeRelations;        // REGIONAL_PART or CONSTITUTIONAL_PART
+  final int [] partStart, partIds;
+  final byte [] partRelations;         // HAS_REGIONAL_PART or HAS_CONSTITUTIONAL_PART
+  final int edges;
+
+  /*
+   * Per-thread search state, reused from one search to the next.  A node has been reached
+   * from a side in the current search if its mark for that side is the current search number.
+   */
+  final ThreadLocal<Search> searches = new ThreadLocal<Search>();
+
+  /*
+   * A part-of axiom, by class, before the taxonomy is known
+   */
+  static class PartOf
+  {
+    final OWLClass part, whole;
+    final byte relation;
+
+    PartOf( OWLClass part, OWLClass whole, byte relation )
+    {
+      this.part = part;
+      this.whole = whole;
+      this.relation = relation;
+    }
+  }
+
+  /*
+   * A path: nodes[0], related by relations[0] to nodes[1], and so on
+   */
+  static class Path
+  {
+    final int [] nodes;
+    final byte [] relations;
+
+    Path( int [] nodes, byte [] relations )
+    {
+      this.nodes = nodes;
+      this.relations = relations;
+    }
+  }
+
+  /*
+   * A subgraph: its nodes, and its edges, edgeFrom[i] related by edgeRelations[i] to edgeTo[i].
+   * Terms which can't be connected to the others are in it on their own (or in a separate
+   * piece with whichever of the others they can be connected to).
+   */
+  static class Subgraph
+  {
+    final int [] nodes;
+    final int [] edgeFrom, edgeTo;
+    final byte [] edgeRelations;
+
+    Subgraph( int [] nodes, int [] edgeFrom, int [] edgeTo, byte [] edgeRelations )
+    {
+      this.nodes = nodes;
+      this.edgeFrom = edgeFrom;
+      this.edgeTo = edgeTo;
+      this.edgeRelations = edgeRelations;
+    }
+  }
+
+  PartOfGraph( int n, int [] wholeStart, int [] wholeIds, byte [] wholeRelations, int [] partStart, int [] partIds, byte [] partRelations )
+  {
+    this.n = n;
+    this.wholeStart = wholeStart;
+    this.wholeIds = wholeIds;
+    this.wholeRelations = wholeRelations;
+    this.partStart = partStart;
+    this.partIds = partIds;
+    this.partRelations = partRelations;
+    this.edges = wholeIds.length;
+  }
+
+  /*
+   * The part-of axioms of the import closure.  Only needs the ontology, so it can be done
+   * while the reasoner classifies.
+   */
+  public static List<PartOf> scan( Set<OWLOntology> importClosure )
+  {
+    List<PartOf> result = new ArrayList<PartOf>();
+
+    for ( OWLOntology imp : importClosure )
+    {
+      for ( OWLSubClassOfAxiom ax : imp.getAxioms( AxiomType.SUBCLASS_OF ) )
+      {
+        if ( ax.getSubClass().isAnonymous() || !( ax.getSuperClass() instanceof OWLObjectSomeValuesFrom ) )
+          continue;
+
+        OWLObjectSomeValuesFrom restrict = (OWLObjectSomeValuesFrom) ax.getSuperClass();
+        byte relation = -1;
+
+        for ( OWLObjectProperty objProperty : restrict.getObjectPropertiesInSignature() )
+        {
+          if ( objProperty.toStringID().equals( REGIONAL_PART_OF ) )
+            relation = REGIONAL_PART;
+          else
+          if ( objProperty.toStringID().equals( CONSTITUTIONAL_PART_OF ) )
+            relation = CONSTITUTIONAL_PART;
+          else
+          {
+            relation = -1;
+            break;
+          }
+        }
+
+        if ( relation == -1 )
+          continue;
+
+        for ( OWLClass whole : restrict.getClassesInSignature() )
+        {
+          result.add( new PartOf( ax.getSubClass().asOWLClass(), whole, relation ) );
+          break;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  public static PartOfGraph build( List<PartOf> partOfs, Taxonomy tx )
+  {
+    int n = tx.size();
+    int [] parts = new int[partOfs.size()], wholes = new int[partOfs.size()];
+    byte [] relations = new byte[partOfs.size()];
+    int count = 0;
+
+    for ( PartOf p : partOfs )
+    {
+      int part = tx.idOf( p.part ), whole = tx.idOf( p.whole );
+
+      if ( part == -1 || whole == -1 || part == whole )
+        continue;
+
+      parts[count] = part;
+      wholes[count] = whole;
+      relations[count] = p.relation;
+      count++;
+    }
+
+    int [] wholeStart = new int[n+1], partStart = new int[n+1];
+
+    for ( int i = 0; i < count; i++ )
+    {
+      wholeStart[parts[i]+1]++;
+      partStart[wholes[i]+1]++;
+    }
+
+    for ( int i = 0; i < n; i++ )
+    {
+      wholeStart[i+1] += wholeStart[i];
+      partStart[i+1] += partStart[i];
+    }
+
+    int [] wholeIds = new int[count], partIds = new int[count];
+    byte [] wholeRelations = new byte[count], partRelations = new byte[count];
+    int [] wholeFill = Arrays.copyOf( wholeStart, n ), partFill = Arrays.copyOf( partStart, n );
+
+    for ( int i = 0; i < count; i++ )
+    {
+      int w = wholeFill[parts[i]]++;
+      wholeIds[w] = wholes[i];
+      wholeRelations[w] = relations[i];
+
+      int p = partFill[wholes[i]]++;
+      partIds[p] = parts[i];
+      partRelations[p] = (byte) ( relations[i] ^ 1 );
+    }
+
+    return new PartOfGraph( n, wholeStart, wholeIds, wholeRelations, partStart, partIds, partRelations );
+  }
+
+  /*
+   * A shortest path from s to t in tx (a copy of the taxonomy this graph was built from,
+   * or a patched copy of it), or null if there is none
+   */
+  public Path shortestPath( Taxonomy tx, int s, int t )
+  {
+    if ( s == t )
+      return new Path( new int[] { s }, new byte[0] );
+
+    Search search = search( tx.size() );
+    int q = search.begin();
+
+    Side fromS = search.fromS, fromT = search.fromT;
+
+    fromS.start( s, q );
+    fromT.start( t, q );
+
+    int meet = -1;
+
+    while ( meet == -1 && fromS.size > 0 && fromT.size > 0 )
+    {
+      if ( fromS.size <= fromT.size )
+        meet = expand( tx, fromS, fromT, q );
+      else
+        meet = expand( tx, fromT, fromS, q );
+    }
+
+    if ( meet == -1 )
+      return null;
+
+    /*
+     * s ... meet along the s side's parents, then meet ... t along the t side's
+     */
+    int length = fromS.depth[meet] + fromT.depth[meet];
+    int [] nodes = new int[length + 1];
+    byte [] relations = new byte[length];
+    int k = fromS.depth[meet];
+
+    for ( int x = meet; x != s; x = fromS.parent[x] )
+    {
+      nodes[k] = x;
+      relations[k-1] = fromS.relation[x];
+      k--;
+    }
+
+    nodes[0] = s;
+    k = fromS.depth[meet];
+
+    for ( int x = meet; x != t; x = fromT.parent[x] )
+    {
+      nodes[k] = x;
+      relations[k] = (byte) ( fromT.relation[x] ^ 1 );
+      k++;
+    }
+
+    nodes[length] = t;
+
+    return new Path( nodes, relations );
+  }
+
+  /*
+   * A small subgraph of tx (as in shortestPath) connecting the given terms
+   */
+  public Subgraph connect( Taxonomy tx, int [] terms )
+  {
+    Search search = search( tx.size() );
+    Side grown = search.fromS, goals = search.fromT;
+
+    BitSet wanted = new BitSet(), connected = new BitSet();
+    int remaining = 0;
+
+    for ( int x : terms )
+    {
+      if ( !wanted.get( x ) )
+      {
+        wanted.set( x );
+        remaining++;
+      }
+    }
+
+    int [] nodes = new int[remaining], edgeFrom = new int[remaining], edgeTo = new int[remaining];
+    byte [] edgeRelations = new byte[remaining];
+    int nodeCount = 0, edgeCount = 0, pieceStart = 0;
+
+    while ( remaining > 0 )
+    {
+      int meet = -1;
+
+      if ( nodeCount > pieceStart )
+      {
+        /*
+         * Search outward from the whole of the current piece at once, towards every term
+         * not yet connected
+         */
+        int q = search.begin();
+
+        grown.size = 0;
+        for ( int i = pieceStart; i < nodeCount; i++ )
+          grown.add( nodes[i], q );
+
+        goals.size = 0;
+        for ( int x = wanted.nextSetBit( 0 ); x != -1; x = wanted.nextSetBit( x + 1 ) )
+          goals.add( x, q );
+
+        while ( meet == -1 && grown.size > 0 )
+          meet = expand( tx, grown, goals, q );
+      }
+
+      if ( meet == -1 )
+      {
+        /*
+         * Nothing more can be connected to the current piece, so start another
+         */
+        meet = wanted.nextSetBit( 0 );
+        pieceStart = nodeCount;
+      }
+
+      for ( int x = meet; !connected.get( x ); x = grown.parent[x] )
+      {
+        if ( nodeCount == nodes.length )
+        {
+          nodes = Arrays.copyOf( nodes, nodeCount * 2 );
+          edgeFrom = Arrays.copyOf( edgeFrom, nodeCount * 2 );
+          edgeTo = Arrays.copyOf( edgeTo, nodeCount * 2 );
+          edgeRelations = Arrays.copyOf( edgeRelations, nodeCount * 2 );
+        }
+
+        connected.set( x );
+        nodes[nodeCount++] = x;
+
+        if ( wanted.get( x ) )
+        {
+          wanted.clear( x );
+          remaining--;
+        }
+
+        if ( pieceStart == nodeCount - 1 )
+          break;   // First node of a new piece
+
+        edgeFrom[edgeCount] = grown.parent[x];
+        edgeTo[edgeCount] = x;
+        edgeRelations[edgeCount] = grown.relation[x];
+        edgeCount++;
+      }
+    }
+
+    return new Subgraph( Arrays.copyOf( nodes, nodeCount ), Arrays.copyOf( edgeFrom, edgeCount ), Arrays.copyOf( edgeTo, edgeCount ), Arrays.copyOf( edgeRelations, edgeCount ) );
+  }
+
+  /*
+   * Expand side's frontier by one level.  Returns the node on the shortest path through
+   * which the two sides met, or -1 if they haven't.
+   */
+  int expand( Taxonomy tx, Side side, Side other, int q )
+  {
+    int [] frontier = Arrays.copyOf( side.frontier, side.size );
+    int best = -1, bestLength = Integer.MAX_VALUE;
+
+    side.size = 0;
+
+    for ( int u : frontier )
+    {
+      if ( u == tx.top || u == tx.bottom )
+        continue;
+
+      int d = side.depth[u] + 1;
+
+      for ( int j = tx.parentStart[u]; j < tx.parentStart[u+1]; j++ )
+        best = visit( side, other, q, u, tx.parentIds[j], SUBCLASS_OF, d, tx, best );
+
+      for ( int j = tx.childStart[u]; j < tx.childStart[u+1]; j++ )
+        best = visit( side, other, q, u, tx.childIds[j], SUPERCLASS_OF, d, tx, best );
+
+      if ( u < n )
+      {
+        for ( int j = wholeStart[u]; j < wholeStart[u+1]; j++ )
+          best = visit( side, other, q, u, wholeIds[j], wholeRelations[j], d, tx, best );
+
+        for ( int j = partStart[u]; j < partStart[u+1]; j++ )
+          best = visit( side, other, q, u, partIds[j], partRelations[j], d, tx, best );
+      }
+    }
+
+    return best;
+  }
+
+  /*
+   * Reach v from u.  Returns whichever of v and best is on the shorter path between the two
+   * sides (best being -1 if they haven't met yet).
+   */
+  int visit( Side side, Side other, int q, int u, int v, byte relation, int d, Taxonomy tx, int best )
+  {
+    if ( v == tx.top || v == tx.bottom || side.mark[v] == q )
+      return best;
+
+    side.mark[v] = q;
+    side.parent[v] = u;
+    side.relation[v] = relation;
+    side.depth[v] = d;
+    side.push( v );
+
+    if ( other.mark[v] != q )
+      return best;
+
+    if ( best == -1 || d + other.depth[v] < side.depth[best] + other.depth[best] )
+      return v;
+
+    return best;
+  }
+
+  Search search( int size )
+  {
+    Search search = searches.get();
+
+    if ( search == null || search.fromS.mark.length < size )
+    {
+      search = new Search( Math.max( size, n ) );
+      searches.set( search );
+    }
+
+    return search;
+  }
+
+  static class Search
+  {
+    final Side fromS, fromT;
+    int number;
+
+    Search( int size )
+    {
+      fromS = new Side( size );
+      fromT = new Side( size );
+    }
+
+    int begin()
+    {
+      if ( ++number == Integer.MAX_VALUE )
+      {
+        fromS.clear();
+        fromT.clear();
+        number = 1;
+      }
+
+      return number;
+    }
+  }
+
+  /*
+   * One side of a bidirectional search
+   */
+  static class Side
+  {
+    final int [] mark, parent, depth;
+    final byte [] relation;   // How parent[x] relates to x
+    int [] frontier = new int[16];
+    int size;
+
+    Side( int size )
+    {
+      mark = new int[size];
+      parent = new int[size];
+      depth = new int[size];
+      relation = new byte[size];
+    }
+
+    void start( int x, int q )
+    {
+      size = 0;
+      add( x, q );
+    }
+
+    /*
+     * Add another starting point
+     */
+    void add( int x, int q )
+    {
+      mark[x] = q;
+      depth[x] = 0;
+      push( x );
+    }
+
+    void push( int x )
+    {
+      if ( size == frontier.length )
+        frontier = Arrays.copyOf( frontier, size * 2 );
+
+      frontier[size++] = x;
+    }
+
+    void clear()
+    {
+      Arrays.fill( mark, 0 );
+    }
+  }
+
+  public int edgeCount()
+  {
+    return edges;
+  }
+}
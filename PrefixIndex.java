@@ -0,0 +1,374 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntology;
+
+/*
+ * Case-insensitive prefix search over the rdfs:labels of all classes, for autocompletion.
+ *
+ * Labels are kept in one array sorted case-insensitively, with a parallel array of the
+ * IRIs they label, so the labels starting with a prefix form a contiguous range which
+ * two binary searches find.  Labels added after startup go into a small sorted delta
+ * which is copied on write and merged into the main arrays once it grows large;
+ * a PrefixIndex itself is never modified.
+ *
+ * A short prefix can match a large part of the main array, so completions are not found by
+ * scanning the range: a segment tree over the label lengths gives the best-ranked label of
+ * any range in O(log n), and the range is split around it until enough distinct IRIs have
+ * been found.  The delta is small enough to scan.
+ */
+public class PrefixIndex
+{
+  static final int MAX_DELTA = 4096;
+
+  final String [] labels;
+  final IRI [] iris;
+  final int [] shortest;   // Segment tree: shortest[k] is the best-ranked position under node k; leaves at labels.length + i
+  final String [] deltaLabels;
+  final IRI [] deltaIris;
+
+  PrefixIndex( String [] labels, IRI [] iris, int [] shortest, String [] deltaLabels, IRI [] deltaIris )
+  {
+    this.labels = labels;
+    this.iris = iris;
+    this.shortest = shortest;
+    this.deltaLabels = deltaLabels;
+    this.deltaIris = deltaIris;
+  }
+
+  PrefixIndex( String [] labels, IRI [] iris )
+  {
+    this( labels, iris, shortestTree( labels ), new String[0], new IRI[0] );
+  }
+
+  static int [] shortestTree( String [] labels )
+  {
+    int n = labels.length;
+    int [] tree = new int[2*n];
+
+    for ( int i = 0; i < n; i++ )
+      tree[n+i] = i;
+
+    for ( int k = n-1; k > 0; k-- )
+      tree[k] = better( labels, tree[2*k], tree[2*k+1] );
+
+    return tree;
+  }
+
+  /*
+   * Whichever of positions a and b ranks first: the shorter label, then the earlier position
+   */
+  static int better( String [] ls, int a, int b )
+  {
+    int cmp = ls[a].length() - ls[b].length();
+
+    return ( cmp < 0 || ( cmp == 0 && a < b ) ) ? a : b;
+  }
+
+  /*
+   * Index the labels of every IRI in the label index which is a class in the import closure
+   */
+  public static PrefixIndex build( LabelIndex labelIndex, Set<OWLOntology> importClosure )
+  {
+    return build( labelIndex.classLabels( importClosure ) );
+  }
+
+  /*
+   * Index the given labels, by class IRI
+   */
+  public static PrefixIndex build( Map<IRI,String[]> classLabels )
+  {
+    final List<String> labelList = new ArrayList<String>();
+    final List<IRI> iriList = new ArrayList<IRI>();
+
+    for ( Map.Entry<IRI,String[]> e : classLabels.entrySet() )
+    {
+      for ( String label : e.getValue() )
+      {
+        labelList.add( label );
+        iriList.add( e.getKey() );
+      }
+    }
+
+    Integer [] order = new Integer[labelList.size()];
+    for ( int i = 0; i < order.length; i++ )
+      order[i] = i;
+
+    Arrays.sort( order, new Comparator<Integer>()
+    {
+      public int compare( Integer a, Integer b )
+      {
+        return foldedCompare( labelList.get(a), labelList.get(b) );
+      }
+    });
+
+    String [] labels = new String[order.length];
+    IRI [] iris = new IRI[order.length];
+
+    for ( int i = 0; i < order.length; i++ )
+    {
+      labels[i] = labelList.get( order[i] );
+      iris[i] = iriList.get( order[i] );
+    }
+
+    return new PrefixIndex( labels, iris );
+  }
+
+  public PrefixIndex withLabel( IRI iri, String label )
+  {
+    int pos = lowerBound( deltaLabels, label, false );
+    int n = deltaLabels.length;
+
+    String [] nextLabels = new String[n+1];
+    IRI [] nextIris = new IRI[n+1];
+
+    System.arraycopy( deltaLabels, 0, nextLabels, 0, pos );
+    System.arraycopy( deltaIris, 0, nextIris, 0, pos );
+    nextLabels[pos] = label;
+    nextIris[pos] = iri;
+    System.arraycopy( deltaLabels, pos, nextLabels, pos+1, n-pos );
+    System.arraycopy( deltaIris, pos, nextIris, pos+1, n-pos );
+
+    if ( n+1 <= MAX_DELTA )
+      return new PrefixIndex( labels, iris, shortest, nextLabels, nextIris );
+
+    return merge( labels, iris, nextLabels, nextIris );
+  }
+
+  static PrefixIndex merge( String [] aLabels, IRI [] aIris, String [] bLabels, IRI [] bIris )
+  {
+    int n = aLabels.length + bLabels.length;
+    String [] labels = new String[n];
+    IRI [] iris = new IRI[n];
+    int i = 0, j = 0;
+
+    for ( int k = 0; k < n; k++ )
+    {
+      if ( j >= bLabels.length || ( i < aLabels.length && foldedCompare( aLabels[i], bLabels[j] ) <= 0 ) )
+      {
+        labels[k] = aLabels[i];
+        iris[k] = aIris[i++];
+      }
+      else
+      {
+        labels[k] = bLabels[j];
+        iris[k] = bIris[j++];
+      }
+    }
+
+    return new PrefixIndex( labels, iris );
+  }
+
+  /*
+   * Up to limit distinct IRIs having a label which starts with prefix (ignoring case), best first.
+   * Exact matches come first, then shorter labels, then alphabetical order.  (Every label in
+   * the range is at least as long as prefix, so ranking by length puts exact matches first.)
+   * Each result is a pair { IRI, the best-ranked matching label }.
+   */
+  public List<Object[]> complete( String prefix, int limit )
+  {
+    final Map<IRI,Long> best = new HashMap<IRI,Long>();
+    PriorityQueue<Long> worstFirst = new PriorityQueue<Long>( limit+1, Collections.reverseOrder() );
+
+    for ( long rank : bestInRange( lowerBound( labels, prefix, false ), lowerBound( labels, prefix, true ), limit ) )
+      offer( rank, iris[(int) rank], limit, best, worstFirst );
+
+    int end = lowerBound( deltaLabels, prefix, true );
+
+    for ( int i = lowerBound( deltaLabels, prefix, false ); i < end; i++ )
+      offer( rank( deltaLabels, i, labels.length ), deltaIris[i], limit, best, worstFirst );
+
+    List<Long> ranked = new ArrayList<Long>( worstFirst );
+    Collections.sort( ranked );
+
+    List<Object[]> results = new ArrayList<Object[]>();
+
+    for ( long rank : ranked )
+    {
+      int pos = (int) ( rank & 0xFFFFFFFFL );
+
+      if ( pos < labels.length )
+        results.add( new Object[] { iris[pos], labels[pos] } );
+      else
+        results.add( new Object[] { deltaIris[pos - labels.length], deltaLabels[pos - labels.length] } );
+    }
+
+    return results;
+  }
+
+  /*
+   * Ranks of the best-ranked labels in labels[lo..hi), in order, stopping once they cover
+   * limit distinct IRIs.  Each range waiting to be split is queued by the rank of its best
+   * label, which is the next best of all the labels not yet taken.
+   */
+  List<Long> bestInRange( int lo, int hi, int limit )
+  {
+    List<Long> result = new ArrayList<Long>();
+    Set<IRI> seen = new HashSet<IRI>();
+    PriorityQueue<long[]> ranges = new PriorityQueue<long[]>( 16, new Comparator<long[]>()
+    {
+      public int compare( long [] a, long [] b )
+      {
+        return ( a[0] < b[0] ) ? -1 : ( a[0] > b[0] ) ? 1 : 0;
+      }
+    });
+
+    queueRange( ranges, lo, hi );
+
+    while ( seen.size() < limit && !ranges.isEmpty() )
+    {
+      long [] range = ranges.poll();
+      int pos = (int) range[0];
+
+      if ( seen.add( iris[pos] ) )
+        result.add( range[0] );
+
+      queueRange( ranges, (int) range[1], pos );
+      queueRange( ranges, pos + 1, (int) range[2] );
+    }
+
+    return result;
+  }
+
+  void queueRange( PriorityQueue<long[]> ranges, int lo, int hi )
+  {
+    if ( lo < hi )
+      ranges.add( new long[] { rank( labels, bestPosition( lo, hi ), 0 ), lo, hi } );
+  }
+
+  /*
+   * The best-ranked position in labels[lo..hi), which must not be empty
+   */
+  int bestPosition( int lo, int hi )
+  {
+    int n = labels.length;
+    int best = lo;
+
+    for ( lo += n, hi += n; lo < hi; lo >>= 1, hi >>= 1 )
+    {
+      if ( ( lo & 1 ) != 0 )
+        best = better( labels, best, shortest[lo++] );
+      if ( ( hi & 1 ) != 0 )
+        best = better( labels, best, shortest[--hi] );
+    }
+
+    return best;
+  }
+
+  /*
+   * The rank of ls[i] (lower is better): its length, then its position, numbered from offset
+   */
+  static long rank( String [] ls, int i, int offset )
+  {
+    return ( (long) Math.min( ls[i].length(), 0x3FFFFFFF ) << 32 ) | ( offset + i );
+  }
+
+  /*
+   * Keep the rank if it is the best one of its IRI, and among the best limit IRIs
+   */
+  static void offer( long rank, IRI iri, int limit, Map<IRI,Long> best, PriorityQueue<Long> worstFirst )
+  {
+    if ( worstFirst.size() >= limit && rank > worstFirst.peek() )
+      return;
+
+    Long previous = best.get( iri );
+
+    if ( previous != null )
+    {
+      if ( previous < rank )
+        return;
+
+      worstFirst.remove( previous );
+    }
+    else if ( worstFirst.size() >= limit )
+      best.values().remove( worstFirst.poll() );
+
+    best.put( iri, rank );
+    worstFirst.add( rank );
+  }
+
+  /*
+   * First position whose label does not sort before prefix (or, if past is true,
+   * the first position after all the labels starting with prefix)
+   */
+  static int lowerBound( String [] ls, String prefix, boolean past )
+  {
+    int lo = 0, hi = ls.length;
+
+    while ( lo < hi )
+    {
+      int mid = ( lo + hi ) >>> 1;
+      int cmp = comparePrefix( ls[mid], prefix );
+
+      if ( cmp < 0 || ( past && cmp == 0 ) )
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /*
+   * Compare the start of s with prefix, ignoring case; 0 means s starts with prefix
+   */
+  static int comparePrefix( String s, String prefix )
+  {
+    int n = Math.min( s.length(), prefix.length() );
+
+    for ( int i = 0; i < n; i++ )
+    {
+      int cmp = fold( s.charAt(i) ) - fold( prefix.charAt(i) );
+
+      if ( cmp != 0 )
+        return cmp;
+    }
+
+    return ( s.length() < prefix.length() ) ? -1 : 0;
+  }
+
+  static int foldedCompare( String a, String b )
+  {
+    int cmp = comparePrefix( a, b );
+
+    return ( cmp != 0 ) ? cmp : a.length() - b.length();
+  }
+
+  static char fold( char c )
+  {
+    return Character.toLowerCase( Character.toUpperCase( c ) );
+  }
+
+  public int size()
+  {
+    return labels.length + deltaLabels.length;
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassExpression;
+import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+
+/*
+ * Classifies composite terms minted by /eqterms in the background, so that a burst of
+ * new terms costs one incremental reclassification instead of one each.
+ *
+ * A request which mints a term submits it (while holding the write lock) and then,
+ * after releasing the lock, waits for the batch containing it.  The background thread
+ * waits debounceMillis after the first submission of a batch for more to arrive, then
+ * flushes the reasoner once, reclassifies once, publishes a view whose taxonomy has
+ * the whole batch, and wakes every request in the batch.
+ *
+ * Only the flush (which reads the changes made to the ontology) holds the knowledgebase
+ * read lock; classifying holds just the reasoner's write lock, so requests which don't
+ * need the reasoner go on being answered meanwhile.  The write lock is only taken to
+ * publish the result.
+ *
+ * If classification fails, the requests waiting for the batch are told so, and its terms
+ * are added to the taxonomy by the next batch to be classified successfully.
+ */
+public class Reclassifier implements Runnable
+{
+  final Owlkb kb;
+  final OWLReasoner r;
+  final long debounceMillis;
+
+  Batch current = new Batch();
+  boolean stopped;   // Replaced by a reload
+
+  /*
+   * Terms minted but not yet classified, by normalized defining expression (see CompositeIndex),
+   * so that a second request for the same expression reuses the term instead of minting a duplicate
+   */
+  final Map<String,OWLClass> pending = new HashMap<String,OWLClass>();
+
+  /*
+   * Terms of batches whose classification failed (only touched by the background thread)
+   */
+  final List<OWLClass> unclassified = new ArrayList<OWLClass>();
+
+  long submitted;   // Terms submitted so far
+  long finished;    // Terms whose batch is done with (classified, failed or skipped)
+
+  /*
+   * The batch the current request thread is waiting for, if any
+   */
+  final ThreadLocal<Batch> awaited = new ThreadLocal<Batch>();
+
+  /*
+   * Metrics
+   */
+  long reclassifications;
+  long failures;
+  long classesClassified;
+  long largestBatch;
+  long totalNanos;
+  long maxNanos;
+  long lastNanos;
+
+  static class Batch
+  {
+    final List<OWLClass> classes = new ArrayList<OWLClass>();
+    boolean done;
+    Exception failure;   // Why classifying the batch failed, or null
+
+    /*
+     * Returns why the batch couldn't be classified, or null if it was
+     */
+    synchronized Exception await()
+    {
+      while ( !done )
+      {
+        try
+        {
+          wait();
+        }
+        catch( InterruptedException e )
+        {
+          Thread.currentThread().interrupt();
+          return e;
+        }
+      }
+
+      return failure;
+    }
+
+    synchronized void finish( Exception failure )
+    {
+      this.failure = failure;
+      done = true;
+      notifyAll();
+    }
+  }
+
+  public Reclassifier( Owlkb kb, OWLReasoner r, long debounceMillis )
+  {
+    this.kb = kb;
+    this.r = r;
+    this.debounceMillis = debounceMillis;
+
+    Thread thread = new Thread( this, "reclassifier" );
+    thread.setDaemon( true );
+    thread.start();
+  }
+
+  /*
+   * The term already minted for exp and awaiting classification, if any.
+   * If there is one, the calling thread will wait for its classification too.
+   */
+  public synchronized OWLClass pendingClassFor( OWLClassExpression exp )
+  {
+    OWLClass c = pending.get( CompositeIndex.key( exp ) );
+
+    if ( c != null )
+      awaited.set( current );
+
+    return c;
+  }
+
+  /*
+   * Queue a newly minted term (already added to the ontology) for classification
+   */
+  public synchronized void submit( OWLClassExpression exp, OWLClass c )
+  {
+    pending.put( CompositeIndex.key( exp ), c );
+    current.classes.add( c );
+    awaited.set( current );
+    submitted++;
+    notifyAll();
+  }
+
+  /*
+   * Whether every submitted term has been classified
+   */
+  public synchronized boolean isIdle()
+  {
+    return pending.isEmpty();
+  }
+
+  /*
+   * Wait until the terms this thread submitted or reused have been classified.  Throws if
+   * they couldn't be.  Must not be called while holding the knowledgebase or reasoner lock.
+   */
+  public void awaitSubmitted() throws ExecutionException
+  {
+    Batch b = awaited.get();
+
+    if ( b != null )
+    {
+      awaited.remove();
+
+      Exception failure = b.await();
+
+      if ( failure != null )
+        throw new ExecutionException( failure );
+    }
+  }
+
+  /*
+   * Wait until every term submitted so far (by any thread) is done with, so that the
+   * published taxonomy has it unless its batch failed.  Terms submitted meanwhile aren't
+   * waited for.  Must not be called while holding the knowledgebase or reasoner lock.
+   */
+  public synchronized void awaitIdle()
+  {
+    long target = submitted;
+
+    while ( finished < target )
+    {
+      try
+      {
+        wait();
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /*
+   * Stop classifying, once any batch in progress is done.  Called (under the write lock) when
+   * a reload replaces the reasoner; the reload has already classified the terms still pending
+   * here, by catching up from the write-ahead log, so the requests waiting for them are just
+   * woken.
+   */
+  public synchronized void stop()
+  {
+    stopped = true;
+    notifyAll();
+  }
+
+  public void run()
+  {
+    while ( true )
+    {
+      synchronized( this )
+      {
+        try
+        {
+          while ( current.classes.isEmpty() && !stopped )
+            wait();
+
+          if ( current.classes.isEmpty() )
+            return;
+
+          /*
+           * Debounce: give the rest of a burst a chance to join this batch.  Each submission
+           * wakes this thread, so wait out the whole period.
+           */
+          long deadline = System.currentTimeMillis() + debounceMillis;
+          long now;
+
+          while ( !stopped && ( now = System.currentTimeMillis() ) < deadline )
+            wait( deadline - now );
+        }
+        catch( InterruptedException e )
+        {
+          return;
+        }
+      }
+
+      Batch batch;
+      boolean skip;
+      Taxonomy base = null, patched = null;
+      List<OWLClass> classes = new ArrayList<OWLClass>( unclassified );
+      Exception failure = null;
+      long startTime = System.nanoTime();
+
+      kb.reasonerLock.writeLock().lock();
+      kb.kbLock.readLock().lock();
+
+      try
+      {
+        /*
+         * The batch is taken, and the reasoner reads the changes, under the read lock, so no
+         * request can be between adding its axiom and submitting its term, or still be
+         * changing the ontology
+         */
+        synchronized( this )
+        {
+          batch = current;
+          current = new Batch();
+          skip = stopped;
+        }
+
+        base = kb.published.get().taxonomy;
+
+        try
+        {
+          if ( !skip )
+            r.flush();
+        }
+        catch( Exception e )
+        {
+          failure = e;
+        }
+        finally
+        {
+          kb.kbLock.readLock().unlock();
+        }
+
+        if ( !skip && failure == null )
+        {
+          try
+          {
+            classes.addAll( batch.classes );
+
+            r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+            patched = base.withClasses( classes, r );
+          }
+          catch( Exception e )
+          {
+            failure = e;
+          }
+        }
+      }
+      finally
+      {
+        kb.reasonerLock.writeLock().unlock();
+      }
+
+      /*
+       * Publish, unless a reload has replaced the reasoner meanwhile (which only happens
+       * once this one has been stopped).  If a different taxonomy was published meanwhile,
+       * patch that one instead, so that the batch isn't lost.
+       */
+      while ( patched != null )
+      {
+        Taxonomy latest;
+
+        kb.kbLock.writeLock().lock();
+
+        try
+        {
+          KbView v = kb.published.get();
+
+          synchronized( this )
+          {
+            skip = stopped;
+          }
+
+          latest = v.taxonomy;
+
+          if ( !skip && latest == base )
+            kb.publish( v.withTaxonomy( patched ) );
+        }
+        finally
+        {
+          kb.kbLock.writeLock().unlock();
+        }
+
+        if ( skip || latest == base )
+          break;
+
+        base = latest;
+        kb.reasonerLock.writeLock().lock();
+
+        try
+        {
+          patched = base.withClasses( classes, r );
+        }
+        catch( Exception e )
+        {
+          failure = e;
+          patched = null;
+        }
+        finally
+        {
+          kb.reasonerLock.writeLock().unlock();
+        }
+      }
+
+      long elapsed = System.nanoTime() - startTime;
+
+      if ( failure != null )
+        unclassified.addAll( batch.classes );
+      else
+      if ( patched != null && !skip )
+        unclassified.clear();
+
+      synchronized( this )
+      {
+        pending.values().removeAll( batch.classes );
+        finished += batch.classes.size();
+        notifyAll();
+
+        if ( failure != null )
+          failures++;
+        else
+        if ( !skip )
+        {
+          reclassifications++;
+          classesClassified += batch.classes.size();
+          largestBatch = Math.max( largestBatch, batch.classes.size() );
+          totalNanos += elapsed;
+          maxNanos = Math.max( maxNanos, elapsed );
+          lastNanos = elapsed;
+        }
+      }
+
+      if ( failure != null )
+        Owlkb.logString( "Could not classify "+batch.classes.size()+" new terms: "+failure+"; they will be added to the taxonomy with the next batch" );
+      else
+      if ( !skip )
+        Owlkb.logString( "Incrementally classified "+batch.classes.size()+" new terms (took "+elapsed/1000000+"ms)" );
+
+      batch.finish( failure );
+    }
+  }
+
+  /*
+   * Metrics as a JSON object
+   */
+  public synchronized String statsJson()
+  {
+    return "{\n  \"reclassifications\": " + reclassifications
+         + ",\n  \"failures\": " + failures
+         + ",\n  \"classesClassified\": " + classesClassified
+         + ",\n  \"largestBatch\": " + largestBatch
+         + ",\n  \"pending\": " + pending.size()
+         + ",\n  \"lastMs\": " + lastNanos / 1000000.0
+         + ",\n  \"maxMs\": " + maxNanos / 1000000.0
+         + ",\n  \"meanMs\": " + ( reclassifications == 0 ? 0 : totalNanos / 1000000.0 / reclassifications )
+         + "\n}";
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Least-recently-used cache of query responses, bounded by the memory they take up.
+ *
+ * Every entry is tagged with the ontology generation it was computed in (a counter
+ * bumped whenever the ontology or the inferred hierarchy changes), and only an entry
+ * from the current generation is ever returned, so changes need no explicit invalidation.
+ *
+ * An entry's weight is an estimate of its size in bytes: two per char of its key and
+ * response, plus a fixed overhead.  The least recently used entries are evicted until
+ * the total weight is within maxBytes.
+ */
+public class ResultCache
+{
+  static final int MAX_RESPONSE_LENGTH = 1 << 20;   // Longer responses are not worth the memory
+  static final int ENTRY_OVERHEAD = 128;            // Bytes per entry besides its chars: objects, map entry
+
+  final long maxBytes;
+  final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+  long bytes;   // Total weight of the entries
+
+  long hits, misses, stale, evictions;
+
+  static class Entry
+  {
+    final long generation;
+    final String response;
+    final boolean fJson;
+    final long weight;
+
+    Entry( String key, long generation, String response, boolean fJson )
+    {
+      this.generation = generation;
+      this.response = response;
+      this.fJson = fJson;
+      this.weight = 2L * ( key.length() + response.length() ) + ENTRY_OVERHEAD;
+    }
+  }
+
+  public ResultCache( long maxBytes )
+  {
+    this.maxBytes = maxBytes;
+  }
+
+  /*
+   * The cached response for key computed in the given generation, or null
+   */
+  public synchronized Entry get( String key, long generation )
+  {
+    Entry e = entries.get( key );
+
+    if ( e == null )
+    {
+      misses++;
+      return null;
+    }
+
+    if ( e.generation != generation )
+    {
+      entries.remove( key );
+      bytes -= e.weight;
+      stale++;
+      misses++;
+      return null;
+    }
+
+    hits++;
+    return e;
+  }
+
+  public synchronized void put( String key, long generation, String response, boolean fJson )
+  {
+    if ( response.length() > MAX_RESPONSE_LENGTH )
+      return;
+
+    Entry e = new Entry( key, generation, response, fJson );
+
+    if ( e.weight > maxBytes )
+      return;
+
+    Entry old = entries.put( key, e );
+
+    if ( old != null )
+      bytes -= old.weight;
+
+    bytes += e.weight;
+
+    /*
+     * Evict the least recently used entries (the new one is the most recently used)
+     */
+    Iterator<Entry> it = entries.values().iterator();
+
+    while ( bytes > maxBytes )
+    {
+      bytes -= it.next().weight;
+      it.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized String statsJson()
+  {
+    long lookups = hits + misses;
+
+    return "{\n  \"entries\": " + entries.size()
+         + ",\n  \"bytes\": " + bytes
+         + ",\n  \"maxBytes\": " + maxBytes
+         + ",\n  \"evictions\": " + evictions
+         + ",\n  \"hits\": " + hits
+         + ",\n  \"misses\": " + misses
+         + ",\n  \"staleMisses\": " + stale
+         + ",\n  \"hitRate\": " + ( lookups == 0 ? 0 : (double) hits / lookups )
+         + "\n}";
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+ * Wall time and heap growth of each phase of startup (or of reloading the ontology),
+ * for the log and for /stats.
+ *
+ * Phases may run concurrently (see fork()).  Heap growth is measured for the whole
+ * process, so phases which overlap are charged for each other's allocations; it is
+ * a rough guide to where the memory goes, not an exact account.
+ */
+public class StartupProfile
+{
+  final String what;   // "Startup", or "Reload"
+  final long startNanos = System.nanoTime();
+  final List<Phase> phases = new ArrayList<Phase>();
+  long totalNanos = -1;   // Until finish() is called
+
+  public StartupProfile( String what )
+  {
+    this.what = what;
+  }
+
+  static class Phase
+  {
+    final String name;
+    final String thread;
+    final long startNanos;
+    final long startHeap;
+    long nanos = -1;   // Until the phase is finished
+    long heapDelta;
+
+    Phase( String name )
+    {
+      this.name = name;
+      this.thread = Thread.currentThread().getName();
+      this.startNanos = System.nanoTime();
+      this.startHeap = usedHeap();
+    }
+  }
+
+  public synchronized Phase begin( String name )
+  {
+    Phase p = new Phase( name );
+
+    phases.add( p );
+    return p;
+  }
+
+  public void end( Phase p )
+  {
+    long nanos = System.nanoTime() - p.startNanos;
+    long heapDelta = usedHeap() - p.startHeap;
+
+    synchronized( this )
+    {
+      p.nanos = nanos;
+      p.heapDelta = heapDelta;
+    }
+
+    Owlkb.logString( p.name + " took " + nanos / 1000000 + "ms (heap " + ( heapDelta >= 0 ? "+" : "" ) + heapDelta / ( 1024 * 1024 ) + "MB)" );
+  }
+
+  /*
+   * Run task as a phase on the given pool
+   */
+  public <T> Future<T> fork( ExecutorService pool, final String name, final Callable<T> task )
+  {
+    return pool.submit( new Callable<T>()
+    {
+      public T call() throws Exception
+      {
+        Phase p = begin( name );
+
+        try
+        {
+          return task.call();
+        }
+        finally
+        {
+          end( p );
+        }
+      }
+    });
+  }
+
+  /*
+   * The result of a forked phase, rethrowing whatever it threw
+   */
+  public static <T> T join( Future<T> f ) throws Exception
+  {
+    try
+    {
+      return f.get();
+    }
+    catch( ExecutionException e )
+    {
+      if ( e.getCause() instanceof Exception )
+        throw (Exception) e.getCause();
+
+      throw e;
+    }
+  }
+
+  public synchronized void finish()
+  {
+    totalNanos = System.nanoTime() - startNanos;
+    Owlkb.logString( what + " took " + totalNanos / 1000000 + "ms" );
+  }
+
+  static long usedHeap()
+  {
+    Runtime rt = Runtime.getRuntime();
+
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /*
+   * The phases as a JSON object, in the order they began
+   */
+  public synchronized String statsJson()
+  {
+    StringBuilder sb = new StringBuilder( "{\n  \"totalMs\": " ).append( totalNanos == -1 ? "null" : String.valueOf( totalNanos / 1000000.0 ) );
+    sb.append( ",\n  \"phases\":\n  [" );
+
+    for ( int i = 0; i < phases.size(); i++ )
+    {
+      Phase p = phases.get(i);
+
+      sb.append( i == 0 ? "\n    {" : ",\n    {" );
+      sb.append( "\"phase\": \"" ).append( p.name ).append( "\", " );
+      sb.append( "\"thread\": \"" ).append( p.thread ).append( "\", " );
+      sb.append( "\"startMs\": " ).append( ( p.startNanos - startNanos ) / 1000000.0 ).append( ", " );
+      sb.append( "\"ms\": " ).append( p.nanos == -1 ? "null" : String.valueOf( p.nanos / 1000000.0 ) ).append( ", " );
+      sb.append( "\"heapDeltaBytes\": " ).append( p.nanos == -1 ? "null" : String.valueOf( p.heapDelta ) ).append( "}" );
+    }
+
+    return sb.append( "\n  ]\n}" ).toString();
+  }
+}
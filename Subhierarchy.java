@@ -0,0 +1,272 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import org.semanticweb.owlapi.model.OWLClass;
+
+/*
+ * The shape of a /subhierarchy response, and the writing of it from a taxonomy:
+ *
+ *   ?depth=<n>     Levels below the root to expand.  Classes on the last level get a
+ *                  "subtermCount" (how many direct subterms they have) instead of "subterms".
+ *   ?maxNodes=<n>  Classes to write in all (or ?max=<n>).  If there are more, the response
+ *                  ends with "truncated": true.  Unbounded by default, unless the server was
+ *                  started with -subhierarchymax.
+ *   ?lazy          Same as ?depth=1: the direct subterms, with their subterm counts, for
+ *                  a client to expand one level at a time.
+ *   ?dag           Write each class once, however many paths lead to it:
+ *                    {"subterms": ["A", ...], "nodes": {"A": {"label": ..., "subterms": [...]}, ...}}
+ *                  Classes are visited breadth-first, so the ones nearest the root are kept
+ *                  when maxNodes cuts the response short.
+ *
+ * Without ?dag, a class with several parents is written out (with its subterms) under each
+ * of them, as it always was; each copy counts against maxNodes, which is how a client (or
+ * the operator) keeps a response about a heavily multiply-inherited branch to a bounded size.
+ */
+public class Subhierarchy
+{
+  static final int UNLIMITED = Integer.MAX_VALUE;
+
+  final int depth;
+  final int maxNodes;
+  final boolean dag;
+
+  Subhierarchy( int depth, int maxNodes, boolean dag )
+  {
+    this.depth = depth;
+    this.maxNodes = maxNodes;
+    this.dag = dag;
+  }
+
+  /*
+   * Null if depth or maxNodes is malformed.  A defaultMaxNodes of 0 means unbounded.
+   */
+  static Subhierarchy fromArgs( Map<String,String> args, int defaultMaxNodes )
+  {
+    int depth = args.containsKey("lazy") ? 1 : UNLIMITED;
+    int maxNodes = ( defaultMaxNodes == 0 ) ? UNLIMITED : defaultMaxNodes;
+
+    try
+    {
+      if ( args.containsKey("depth") )
+        depth = Integer.parseInt( args.get("depth") );
+
+      if ( args.containsKey("maxNodes") )
+        maxNodes = Integer.parseInt( args.get("maxNodes") );
+      else
+      if ( args.containsKey("max") )
+        maxNodes = Integer.parseInt( args.get("max") );
+    }
+    catch( Exception e )
+    {
+      return null;
+    }
+
+    if ( depth < 1 || maxNodes < 0 )
+      return null;
+
+    return new Subhierarchy( depth, maxNodes, args.containsKey("dag") );
+  }
+
+  /*
+   * Write the subhierarchy under a root whose direct subterms are rootChildren (taxonomy ids)
+   */
+  public void write( Appendable out, Taxonomy tx, LabelIndex li, int [] rootChildren ) throws IOException
+  {
+    Writer w = new Writer( out, tx, li );
+
+    out.append( "{\n" );
+
+    if ( dag )
+      w.writeDag( rootChildren );
+    else
+      w.writeTree( rootChildren, 1, 1 );
+
+    if ( w.truncated )
+      out.append( ",\n \"truncated\": true" );
+
+    out.append( "\n}" );
+  }
+
+  /*
+   * The state of one write()
+   */
+  class Writer
+  {
+    final Appendable out;
+    final Taxonomy tx;
+    final LabelIndex li;
+    int written;
+    boolean truncated;
+
+    Writer( Appendable out, Taxonomy tx, LabelIndex li )
+    {
+      this.out = out;
+      this.tx = tx;
+      this.li = li;
+    }
+
+    void writeTree( int [] children, int indent, int level ) throws IOException
+    {
+      out.append( Owlkb.spaces( indent ) ).append( "\"subterms\":\n" );
+      out.append( Owlkb.spaces( indent ) ).append( "[\n" );
+
+      boolean isFirst = true;
+
+      for ( int child : children )
+      {
+        if ( child == tx.bottom )
+          continue;
+
+        if ( written == maxNodes )
+        {
+          truncated = true;
+          break;
+        }
+
+        written++;
+
+        if ( isFirst )
+          isFirst = false;
+        else
+          out.append( ",\n" );
+
+        OWLClass c = tx.node( child ).getRepresentativeElement();
+
+        out.append( Owlkb.spaces( indent + 1 ) ).append( "{\n" );
+        out.append( Owlkb.spaces( indent + 2 ) ).append( "\"term\": \"" ).append( Owlkb.shortUrl(c.getIRI().toString()) ).append( "\",\n" );
+
+        String label = li.preferredLabel( c.getIRI() );
+        if ( label != null )
+          out.append( Owlkb.spaces( indent + 2 ) ).append( "\"label\": \"" ).append( Owlkb.escapeJSON(label) ).append( "\",\n" );
+
+        if ( level < depth )
+          writeTree( tx.children( child ), indent + 2, level + 1 );
+        else
+          out.append( Owlkb.spaces( indent + 2 ) ).append( "\"subtermCount\": " ).append( String.valueOf( subtermCount( child ) ) );
+
+        out.append( "\n" ).append( Owlkb.spaces( indent + 1 ) ).append( "}" );
+      }
+
+      out.append( "\n" ).append( Owlkb.spaces( indent ) ).append( "]" );
+    }
+
+    void writeDag( int [] rootChildren ) throws IOException
+    {
+      out.append( " \"subterms\": " );
+      writeIdList( rootChildren );
+      out.append( ",\n \"nodes\":\n {" );
+
+      /*
+       * Breadth-first, one level at a time
+       */
+      BitSet seen = new BitSet();
+      List<Integer> level = new ArrayList<Integer>();
+      int levelNumber = 1;
+
+      enqueue( rootChildren, seen, level );
+
+      while ( !level.isEmpty() && !truncated )
+      {
+        List<Integer> next = new ArrayList<Integer>();
+
+        for ( int id : level )
+        {
+          if ( written == maxNodes )
+          {
+            truncated = true;
+            break;
+          }
+
+          OWLClass c = tx.node( id ).getRepresentativeElement();
+          String label = li.preferredLabel( c.getIRI() );
+
+          out.append( written++ == 0 ? "\n  \"" : ",\n  \"" ).append( Owlkb.shortUrl(c.getIRI().toString()) ).append( "\": {" );
+
+          if ( label != null )
+            out.append( "\"label\": \"" ).append( Owlkb.escapeJSON(label) ).append( "\", " );
+
+          if ( levelNumber < depth )
+          {
+            out.append( "\"subterms\": " );
+            writeIdList( tx.children( id ) );
+            enqueue( tx.children( id ), seen, next );
+          }
+          else
+            out.append( "\"subtermCount\": " ).append( String.valueOf( subtermCount( id ) ) );
+
+          out.append( "}" );
+        }
+
+        level = next;
+        levelNumber++;
+      }
+
+      out.append( "\n }" );
+    }
+
+    void enqueue( int [] ids, BitSet seen, List<Integer> queue )
+    {
+      for ( int id : ids )
+      {
+        if ( id != tx.bottom && !seen.get( id ) )
+        {
+          seen.set( id );
+          queue.add( id );
+        }
+      }
+    }
+
+    void writeIdList( int [] ids ) throws IOException
+    {
+      boolean isFirst = true;
+
+      out.append( "[" );
+
+      for ( int id : ids )
+      {
+        if ( id == tx.bottom )
+          continue;
+
+        out.append( isFirst ? "\"" : ", \"" ).append( Owlkb.shortUrl(tx.node( id ).getRepresentativeElement().getIRI().toString()) ).append( "\"" );
+        isFirst = false;
+      }
+
+      out.append( "]" );
+    }
+
+    int subtermCount( int id )
+    {
+      int count = 0;
+
+      for ( int child : tx.children( id ) )
+      {
+        if ( child != tx.bottom )
+          count++;
+      }
+
+      return count;
+    }
+  }
+}
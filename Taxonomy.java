@@ -0,0 +1,522 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.reasoner.Node;
+import org.semanticweb.owlapi.reasoner.NodeSet;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+
+/*
+ * The inferred class hierarchy, compiled into integer ids (one per equivalence node)
+ * and CSR-style child/parent arrays, so that hierarchy queries about named classes
+ * can be answered by array traversal instead of by asking the reasoner.
+ *
+ * A Taxonomy is never modified after it is built.  When classes are added to the
+ * ontology, withClasses() returns a patched copy and the old copy stays valid for
+ * whoever is still reading it.  Ids are stable across copies, so the class -> id map
+ * is shared by them too; classes added since it was built live in a small overlay
+ * map, as in LabelIndex, which is copied on write and folded in once it grows large.
+ */
+public class Taxonomy
+{
+  static final int [] NONE = new int[0];
+  static final int MAX_OVERLAY = 1024;
+
+  final Node<OWLClass> [] nodes;      // id -> node, exactly as returned by the reasoner
+  final Map<OWLClass,Integer> ids;    // class -> id.  Never modified once built
+  final Map<OWLClass,Integer> overlay;   // class -> id for the classes added since ids was built
+  final int [] childStart, childIds;  // children of id are childIds[childStart[id]..childStart[id+1]]
+  final int [] parentStart, parentIds;
+  final int top, bottom;
+
+  /*
+   * Reachability labels (Agrawal, Borgida & Jagadish's interval scheme): every node gets a
+   * postorder number in a depth-first spanning tree, and a sorted list of disjoint intervals
+   * of postorder numbers which covers exactly the node and its descendants.  Under a tree
+   * this is one interval per node; each extra parent only adds intervals to its ancestors.
+   */
+  final int [] post;
+  final int [] intervalStart;         // intervals of id are intervals[2k..2k+1], k in intervalStart[id]..intervalStart[id+1]
+  final int [] intervals;
+
+  /*
+   * Number of strict descendants of each node (including the bottom node).  Since the
+   * intervals of a node are disjoint and cover exactly it and its descendants, this is
+   * just their total length, less one.
+   */
+  final int [] descendantCounts;
+
+  Taxonomy( Node<OWLClass> [] nodes, Map<OWLClass,Integer> ids, Map<OWLClass,Integer> overlay, int [][] children, int top, int bottom )
+  {
+    this.nodes = nodes;
+    this.ids = ids;
+    this.overlay = overlay;
+    this.top = top;
+    this.bottom = bottom;
+
+    int n = nodes.length;
+    int [] parentCounts = new int[n];
+
+    childStart = new int[n+1];
+    for ( int i = 0; i < n; i++ )
+    {
+      childStart[i+1] = childStart[i] + children[i].length;
+
+      for ( int child : children[i] )
+        parentCounts[child]++;
+    }
+
+    childIds = new int[childStart[n]];
+    for ( int i = 0; i < n; i++ )
+      System.arraycopy( children[i], 0, childIds, childStart[i], children[i].length );
+
+    parentStart = new int[n+1];
+    for ( int i = 0; i < n; i++ )
+      parentStart[i+1] = parentStart[i] + parentCounts[i];
+
+    parentIds = new int[parentStart[n]];
+    int [] fill = Arrays.copyOf( parentStart, n );
+
+    for ( int i = 0; i < n; i++ )
+    {
+      for ( int j = childStart[i]; j < childStart[i+1]; j++ )
+        parentIds[fill[childIds[j]]++] = i;
+    }
+
+    post = new int[n];
+    int [] low = new int[n];
+    int [] order = numberDepthFirst( post, low );
+
+    /*
+     * Children finish before their parents, so in postorder each node's children are labeled first
+     */
+    int [][] labels = new int[n][];
+    int total = 0;
+
+    for ( int v : order )
+    {
+      labels[v] = mergeIntervals( v, low[v], labels );
+      total += labels[v].length;
+    }
+
+    intervalStart = new int[n+1];
+    intervals = new int[total];
+
+    for ( int i = 0; i < n; i++ )
+    {
+      intervalStart[i+1] = intervalStart[i] + labels[i].length / 2;
+      System.arraycopy( labels[i], 0, intervals, 2 * intervalStart[i], labels[i].length );
+    }
+
+    descendantCounts = new int[n];
+
+    for ( int i = 0; i < n; i++ )
+    {
+      int covered = 0;
+
+      for ( int k = intervalStart[i]; k < intervalStart[i+1]; k++ )
+        covered += intervals[2*k+1] - intervals[2*k] + 1;
+
+      descendantCounts[i] = covered - 1;
+    }
+  }
+
+  /*
+   * Iterative depth-first search from the top node.  Fills in the postorder number of each node,
+   * and the lowest postorder number in its spanning subtree, and returns the ids in postorder.
+   */
+  int [] numberDepthFirst( int [] post, int [] low )
+  {
+    int n = nodes.length;
+    int [] order = new int[n];
+    int [] stack = new int[n];
+    int [] next = new int[n];
+    BitSet visited = new BitSet( n );
+    int counter = 0;
+
+    for ( int root = -1; root < n; root++ )
+    {
+      int start = ( root == -1 ) ? top : root;
+
+      if ( visited.get( start ) )
+        continue;
+
+      int depth = 0;
+      stack[depth++] = start;
+      visited.set( start );
+      low[start] = counter;
+      next[start] = childStart[start];
+
+      while ( depth > 0 )
+      {
+        int v = stack[depth-1];
+
+        if ( next[v] < childStart[v+1] )
+        {
+          int child = childIds[next[v]++];
+
+          if ( !visited.get( child ) )
+          {
+            visited.set( child );
+            low[child] = counter;
+            next[child] = childStart[child];
+            stack[depth++] = child;
+          }
+        }
+        else
+        {
+          depth--;
+          order[counter] = v;
+          post[v] = counter++;
+        }
+      }
+    }
+
+    return order;
+  }
+
+  /*
+   * The spanning-subtree interval of v, together with the intervals of all its children, as a
+   * sorted array of disjoint [lo,hi] pairs
+   */
+  int [] mergeIntervals( int v, int lowV, int [][] labels )
+  {
+    int count = 1;
+
+    for ( int j = childStart[v]; j < childStart[v+1]; j++ )
+      count += labels[childIds[j]].length / 2;
+
+    long [] pairs = new long[count];
+    int k = 0;
+
+    pairs[k++] = ( (long) lowV << 32 ) | post[v];
+
+    for ( int j = childStart[v]; j < childStart[v+1]; j++ )
+    {
+      int [] label = labels[childIds[j]];
+
+      for ( int i = 0; i < label.length; i += 2 )
+      {
+        if ( label[i] >= lowV && label[i+1] <= post[v] )
+          continue;
+
+        pairs[k++] = ( (long) label[i] << 32 ) | label[i+1];
+      }
+    }
+
+    Arrays.sort( pairs, 0, k );
+
+    int [] merged = new int[2*k];
+    int m = 0;
+
+    for ( int i = 0; i < k; i++ )
+    {
+      int lo = (int) ( pairs[i] >>> 32 ), hi = (int) pairs[i];
+
+      if ( m > 0 && lo <= merged[m-1] + 1 )
+        merged[m-1] = Math.max( merged[m-1], hi );
+      else
+      {
+        merged[m++] = lo;
+        merged[m++] = hi;
+      }
+    }
+
+    return Arrays.copyOf( merged, m );
+  }
+
+  /*
+   * Compile the reasoner's class hierarchy, by walking it downwards from owl:Thing.
+   * The reasoner should already have precomputed the class hierarchy.
+   */
+  public static Taxonomy build( OWLReasoner r )
+  {
+    List<Node<OWLClass>> nodeList = new ArrayList<Node<OWLClass>>();
+    List<int[]> childLists = new ArrayList<int[]>();
+    Map<OWLClass,Integer> ids = new HashMap<OWLClass,Integer>();
+    Map<OWLClass,Integer> none = Collections.<OWLClass,Integer>emptyMap();
+
+    int top = register( r.getTopClassNode(), nodeList, none, ids );
+    int bottom = register( r.getBottomClassNode(), nodeList, none, ids );
+
+    for ( int i = 0; i < nodeList.size(); i++ )
+      childLists.add( directSubIds( r, nodeList.get(i), nodeList, none, ids ) );
+
+    return new Taxonomy( toArray( nodeList ), ids, none, childLists.toArray( new int[0][] ), top, bottom );
+  }
+
+  /*
+   * A copy of this taxonomy which also contains the given classes, which must already
+   * be known to the (re-classified) reasoner.  Adding a defined class does not change
+   * how the old classes relate to each other, so only the new nodes and their direct
+   * superclasses are asked about their direct subclasses; the other nodes' children
+   * are carried over.  The CSR arrays and reachability labels are then rebuilt from
+   * scratch, which is O(nodes + edges) however few classes were added: that is why
+   * new terms are added in batches (see Reclassifier) rather than one at a time.
+   */
+  public Taxonomy withClasses( Collection<OWLClass> added, OWLReasoner r )
+  {
+    List<Node<OWLClass>> nodeList = new ArrayList<Node<OWLClass>>( Arrays.asList( nodes ) );
+    List<Integer> dirty = new ArrayList<Integer>();
+    Map<OWLClass,Integer> base = ids;
+    Map<OWLClass,Integer> patch = new HashMap<OWLClass,Integer>( overlay );
+
+    for ( OWLClass c : added )
+    {
+      if ( idOf( c ) != -1 )
+        continue;
+
+      Node<OWLClass> node = r.getEquivalentClasses( c );
+      Integer existing = lookup( node, base, patch );
+
+      if ( existing != null )
+      {
+        /*
+         * The class is equivalent to a class we already have (e.g., it is unsatisfiable)
+         */
+        nodeList.set( existing, node );
+        for ( OWLClass member : node.getEntities() )
+          patch.put( member, existing );
+
+        continue;
+      }
+
+      int id = register( node, nodeList, base, patch );
+      dirty.add( id );
+
+      for ( Node<OWLClass> parent : r.getSuperClasses( c, true ).getNodes() )
+      {
+        Integer parentId = lookup( parent, base, patch );
+
+        if ( parentId != null && !dirty.contains( parentId ) )
+          dirty.add( parentId );
+      }
+    }
+
+    int n = nodeList.size();
+    int [][] children = new int[n][];
+
+    for ( int i = 0; i < nodes.length; i++ )
+      children[i] = children( i );
+
+    for ( int i : dirty )
+      children[i] = directSubIds( r, nodeList.get(i), nodeList, base, patch );
+
+    for ( int i = nodes.length; i < n; i++ )
+    {
+      if ( children[i] == null )
+        children[i] = NONE;
+    }
+
+    if ( patch.size() > MAX_OVERLAY )
+    {
+      base = new HashMap<OWLClass,Integer>( ids );
+      base.putAll( patch );
+      patch = Collections.<OWLClass,Integer>emptyMap();
+    }
+
+    return new Taxonomy( toArray( nodeList ), base, patch, children, top, bottom );
+  }
+
+  /*
+   * The id of the node containing c, or -1 if c is not in this taxonomy
+   */
+  public int idOf( OWLClass c )
+  {
+    Integer id = overlay.get( c );
+
+    if ( id == null )
+      id = ids.get( c );
+
+    return ( id == null ) ? -1 : id;
+  }
+
+  public Node<OWLClass> node( int id )
+  {
+    return nodes[id];
+  }
+
+  public int size()
+  {
+    return nodes.length;
+  }
+
+  public int [] children( int id )
+  {
+    return Arrays.copyOfRange( childIds, childStart[id], childStart[id+1] );
+  }
+
+  public int [] parents( int id )
+  {
+    return Arrays.copyOfRange( parentIds, parentStart[id], parentStart[id+1] );
+  }
+
+  /*
+   * Whether sub is sup, or one of its descendants, using only the reachability labels
+   */
+  public boolean isSubsumedBy( int sub, int sup )
+  {
+    int p = post[sub];
+    int lo = intervalStart[sup], hi = intervalStart[sup+1] - 1;
+
+    while ( lo <= hi )
+    {
+      int mid = ( lo + hi ) >>> 1;
+
+      if ( intervals[2*mid] > p )
+        hi = mid - 1;
+      else if ( intervals[2*mid+1] < p )
+        lo = mid + 1;
+      else
+        return true;
+    }
+
+    return false;
+  }
+
+  public int descendantCount( int id )
+  {
+    return descendantCounts[id];
+  }
+
+  /*
+   * Ids of all strict descendants of id (including the bottom node), in breadth-first order
+   */
+  public int [] descendants( int id )
+  {
+    return descendants( id, Integer.MAX_VALUE );
+  }
+
+  /*
+   * The first max of those, without visiting the rest
+   */
+  public int [] descendants( int id, int max )
+  {
+    if ( max <= 0 )
+      return NONE;
+
+    BitSet seen = new BitSet( nodes.length );
+    int [] queue = new int[16];
+    int head = 0, tail = 0;
+
+    seen.set( id );
+    queue[tail++] = id;
+
+    while ( head < tail )
+    {
+      int x = queue[head++];
+
+      for ( int j = childStart[x]; j < childStart[x+1]; j++ )
+      {
+        int child = childIds[j];
+
+        if ( seen.get( child ) )
+          continue;
+
+        seen.set( child );
+
+        if ( tail == queue.length )
+          queue = Arrays.copyOf( queue, tail * 2 );
+
+        queue[tail++] = child;
+
+        if ( tail - 1 >= max )
+          return Arrays.copyOfRange( queue, 1, tail );
+      }
+    }
+
+    return Arrays.copyOfRange( queue, 1, tail );
+  }
+
+  static int [] directSubIds( OWLReasoner r, Node<OWLClass> node, List<Node<OWLClass>> nodeList, Map<OWLClass,Integer> base, Map<OWLClass,Integer> patch )
+  {
+    if ( node.isBottomNode() )
+      return NONE;
+
+    NodeSet<OWLClass> subs = r.getSubClasses( node.getRepresentativeElement(), true );
+    int [] result = new int[subs.getNodes().size()];
+    int i = 0;
+
+    for ( Node<OWLClass> sub : subs.getNodes() )
+      result[i++] = register( sub, nodeList, base, patch );
+
+    return result;
+  }
+
+  /*
+   * The id of node, giving it the next id if it has none yet.  New ids go into patch;
+   * base is only read.
+   */
+  static int register( Node<OWLClass> node, List<Node<OWLClass>> nodeList, Map<OWLClass,Integer> base, Map<OWLClass,Integer> patch )
+  {
+    Integer known = lookup( node, base, patch );
+
+    if ( known != null )
+      return known;
+
+    int id = nodeList.size();
+    nodeList.add( node );
+
+    for ( OWLClass c : node.getEntities() )
+      patch.put( c, id );
+
+    return id;
+  }
+
+  static Integer lookup( Node<OWLClass> node, Map<OWLClass,Integer> base, Map<OWLClass,Integer> patch )
+  {
+    for ( OWLClass c : node.getEntities() )
+    {
+      Integer id = patch.get( c );
+
+      if ( id == null )
+        id = base.get( c );
+
+      if ( id != null )
+        return id;
+    }
+
+    return null;
+  }
+
+  static Node<OWLClass> [] toArray( List<Node<OWLClass>> nodeList )
+  {
+    Node<OWLClass> [] result = newNodeArray( nodeList.size() );
+
+    return nodeList.toArray( result );
+  }
+
+  /*
+   * Java can't create an array of a generic type, so create a raw one
+   */
+  @SuppressWarnings({"unchecked","rawtypes"})
+  static Node<OWLClass> [] newNodeArray( int n )
+  {
+    return new Node[n];
+  }
+}
@@ -0,0 +1,395 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.reasoner.Node;
+import org.semanticweb.owlapi.reasoner.impl.OWLClassNode;
+import org.semanticweb.owlapi.util.ShortFormProvider;
+
+/*
+ * The classified taxonomy, the shortforms of its classes and the label index, saved in a
+ * binary file next to the ontology after classification, so that a restart can answer
+ * named-class queries as soon as the file is read instead of after the ontology has been
+ * parsed and classified again.
+ *
+ * The file records a checksum of the ontology file and its write-ahead log, and is only
+ * used if they haven't changed since it was written.  (Ontologies imported from elsewhere
+ * aren't checksummed.)  It ends with a CRC of its own contents, so a file cut short by a
+ * crash is ignored rather than misread.
+ *
+ * Layout (big-endian): magic, version, ontology checksum; the IRI table; node count, top
+ * and bottom; the members of each node (as IRI numbers); the children of each node;
+ * the shortform of each member; the labeled IRIs, each with a class flag and its labels;
+ * and the CRC.  Strings are a length followed by that many bytes of UTF-8.
+ */
+public class TaxonomySnapshot
+{
+  static final long MAGIC = 0x4f574c4b42534e31L;   // "OWLKBSN1"
+  static final int VERSION = 1;
+
+  final Taxonomy taxonomy;
+  final LabelIndex labelIndex;
+  final Map<IRI,String[]> classLabels;   // Labels of the labeled IRIs which are classes, as LabelIndex.classLabels() would give
+  final ConcurrentMap<String,OWLClass> shortforms;   // Shortform -> class, for every class in the taxonomy
+
+  TaxonomySnapshot( Taxonomy taxonomy, LabelIndex labelIndex, Map<IRI,String[]> classLabels, ConcurrentMap<String,OWLClass> shortforms )
+  {
+    this.taxonomy = taxonomy;
+    this.labelIndex = labelIndex;
+    this.classLabels = classLabels;
+    this.shortforms = shortforms;
+  }
+
+  /*
+   * CRC32 of the contents of the given files (a missing file counts as empty)
+   */
+  public static long checksum( File... files ) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    byte [] chunk = new byte[1 << 16];
+
+    for ( File f : files )
+    {
+      if ( !f.exists() )
+      {
+        crc.update( 0 );
+        continue;
+      }
+
+      InputStream in = new FileInputStream( f );
+
+      try
+      {
+        int n;
+
+        while ( (n = in.read( chunk )) != -1 )
+          crc.update( chunk, 0, n );
+      }
+      finally
+      {
+        in.close();
+      }
+
+      crc.update( 1 );
+    }
+
+    return crc.getValue();
+  }
+
+  /*
+   * Save tx and labels, for an ontology whose files have the given checksum.  The snapshot
+   * is written to a temporary file which then replaces the old one, so a reader never sees
+   * half of it.
+   */
+  public static void write( File file, long ontologyChecksum, Taxonomy tx, LabelIndex labels, Set<OWLOntology> importClosure, ShortFormProvider sfp ) throws IOException
+  {
+    Map<IRI,String[]> classLabels = labels.classLabels( importClosure );
+
+    Set<IRI> labeled = new HashSet<IRI>( labels.base.keySet() );
+    labeled.addAll( labels.overlay.keySet() );
+
+    /*
+     * Number every IRI which is mentioned more than once
+     */
+    List<IRI> iriList = new ArrayList<IRI>();
+    Map<IRI,Integer> iriNumbers = new HashMap<IRI,Integer>();
+
+    for ( int i = 0; i < tx.size(); i++ )
+    {
+      for ( OWLClass c : tx.node( i ).getEntities() )
+        number( c.getIRI(), iriList, iriNumbers );
+    }
+
+    for ( IRI iri : labeled )
+      number( iri, iriList, iriNumbers );
+
+    File tmp = new File( file.getPath() + ".tmp" );
+    CRC32 crc = new CRC32();
+    FileOutputStream fos = new FileOutputStream( tmp );
+    DataOutputStream out = new DataOutputStream( new CheckedOutputStream( new BufferedOutputStream( fos, 1 << 16 ), crc ) );
+
+    try
+    {
+      out.writeLong( MAGIC );
+      out.writeInt( VERSION );
+      out.writeLong( ontologyChecksum );
+
+      out.writeInt( iriList.size() );
+      for ( IRI iri : iriList )
+        writeString( out, iri.toString() );
+
+      int n = tx.size();
+
+      out.writeInt( n );
+      out.writeInt( tx.top );
+      out.writeInt( tx.bottom );
+
+      for ( int i = 0; i < n; i++ )
+      {
+        Set<OWLClass> members = tx.node( i ).getEntities();
+
+        out.writeInt( members.size() );
+        for ( OWLClass c : members )
+          out.writeInt( iriNumbers.get( c.getIRI() ) );
+      }
+
+      for ( int i = 0; i < n; i++ )
+      {
+        out.writeInt( tx.childStart[i+1] - tx.childStart[i] );
+        for ( int j = tx.childStart[i]; j < tx.childStart[i+1]; j++ )
+          out.writeInt( tx.childIds[j] );
+      }
+
+      /*
+       * Members are iterated in the same order as above
+       */
+      for ( int i = 0; i < n; i++ )
+      {
+        for ( OWLClass c : tx.node( i ).getEntities() )
+          writeString( out, sfp.getShortForm( c ) );
+      }
+
+      out.writeInt( labeled.size() );
+
+      for ( IRI iri : labeled )
+      {
+        String [] l = labels.labels( iri );
+
+        out.writeInt( iriNumbers.get( iri ) );
+        out.writeBoolean( classLabels.containsKey( iri ) );
+        out.writeInt( l.length );
+
+        for ( String label : l )
+          writeString( out, label );
+      }
+
+      out.flush();
+      new DataOutputStream( fos ).writeLong( crc.getValue() );
+      fos.getFD().sync();
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if ( !tmp.renameTo( file ) )
+    {
+      file.delete();
+
+      if ( !tmp.renameTo( file ) )
+        throw new IOException( "Could not rename " + tmp + " to " + file );
+    }
+  }
+
+  static void number( IRI iri, List<IRI> iriList, Map<IRI,Integer> iriNumbers )
+  {
+    if ( !iriNumbers.containsKey( iri ) )
+    {
+      iriNumbers.put( iri, iriList.size() );
+      iriList.add( iri );
+    }
+  }
+
+  static void writeString( DataOutputStream out, String x ) throws IOException
+  {
+    byte [] bytes = x.getBytes( "UTF-8" );
+
+    out.writeInt( bytes.length );
+    out.write( bytes );
+  }
+
+  /*
+   * Read a snapshot, by memory-mapping it.  Returns null if there is no snapshot, or it was
+   * written for a different version of the ontology, or it is damaged.
+   */
+  public static TaxonomySnapshot load( File file, long ontologyChecksum, OWLDataFactory df ) throws IOException
+  {
+    if ( !file.exists() || file.length() < 8 )
+      return null;
+
+    RandomAccessFile raf = new RandomAccessFile( file, "r" );
+    MappedByteBuffer buf;
+
+    try
+    {
+      buf = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+    }
+    finally
+    {
+      raf.close();   // The mapping stays valid
+    }
+
+    int contentLength = buf.limit() - 8;
+
+    if ( buf.getLong( contentLength ) != crcOf( buf, contentLength ) )
+    {
+      Owlkb.logString( "Ignoring damaged taxonomy snapshot " + file );
+      return null;
+    }
+
+    buf.limit( contentLength );
+
+    try
+    {
+      if ( buf.getLong() != MAGIC || buf.getInt() != VERSION )
+        return null;
+
+      if ( buf.getLong() != ontologyChecksum )
+      {
+        Owlkb.logString( "Ignoring out-of-date taxonomy snapshot " + file );
+        return null;
+      }
+
+      IRI [] iris = new IRI[buf.getInt()];
+      for ( int i = 0; i < iris.length; i++ )
+        iris[i] = IRI.create( readString( buf ) );
+
+      int n = buf.getInt();
+      int top = buf.getInt();
+      int bottom = buf.getInt();
+
+      Node<OWLClass> [] nodes = Taxonomy.newNodeArray( n );
+      int [][] memberIris = new int[n][];
+      Map<OWLClass,Integer> ids = new HashMap<OWLClass,Integer>();
+
+      for ( int i = 0; i < n; i++ )
+      {
+        memberIris[i] = new int[buf.getInt()];
+        Set<OWLClass> members = new HashSet<OWLClass>();
+
+        for ( int k = 0; k < memberIris[i].length; k++ )
+        {
+          memberIris[i][k] = buf.getInt();
+
+          OWLClass c = df.getOWLClass( iris[memberIris[i][k]] );
+          members.add( c );
+          ids.put( c, i );
+        }
+
+        nodes[i] = new OWLClassNode( members );
+      }
+
+      int [][] children = new int[n][];
+
+      for ( int i = 0; i < n; i++ )
+      {
+        children[i] = new int[buf.getInt()];
+
+        for ( int k = 0; k < children[i].length; k++ )
+          children[i][k] = buf.getInt();
+      }
+
+      ConcurrentMap<String,OWLClass> shortforms = new ConcurrentHashMap<String,OWLClass>();
+
+      for ( int i = 0; i < n; i++ )
+      {
+        for ( int k = 0; k < memberIris[i].length; k++ )
+          shortforms.put( readString( buf ), df.getOWLClass( iris[memberIris[i][k]] ) );
+      }
+
+      int labeledCount = buf.getInt();
+      Map<IRI,String[]> base = new HashMap<IRI,String[]>();
+      Map<IRI,String[]> classLabels = new HashMap<IRI,String[]>();
+
+      for ( int i = 0; i < labeledCount; i++ )
+      {
+        IRI iri = iris[buf.getInt()];
+        boolean isClass = ( buf.get() != 0 );
+        String [] labels = new String[buf.getInt()];
+
+        for ( int k = 0; k < labels.length; k++ )
+          labels[k] = readString( buf );
+
+        base.put( iri, labels );
+
+        if ( isClass )
+          classLabels.put( iri, labels );
+      }
+
+      Taxonomy tx = new Taxonomy( nodes, ids, Collections.<OWLClass,Integer>emptyMap(), children, top, bottom );
+      LabelIndex labelIndex = new LabelIndex( base, Collections.<IRI,String[]>emptyMap() );
+
+      return new TaxonomySnapshot( tx, labelIndex, classLabels, shortforms );
+    }
+    catch( BufferUnderflowException e )
+    {
+      Owlkb.logString( "Ignoring truncated taxonomy snapshot " + file );
+      return null;
+    }
+    catch( IndexOutOfBoundsException e )
+    {
+      Owlkb.logString( "Ignoring malformed taxonomy snapshot " + file );
+      return null;
+    }
+  }
+
+  static long crcOf( MappedByteBuffer buf, int length )
+  {
+    CRC32 crc = new CRC32();
+    byte [] chunk = new byte[1 << 16];
+
+    for ( int pos = 0; pos < length; pos += chunk.length )
+    {
+      int n = Math.min( chunk.length, length - pos );
+
+      buf.position( pos );
+      buf.get( chunk, 0, n );
+      crc.update( chunk, 0, n );
+    }
+
+    buf.position( 0 );
+
+    return crc.getValue();
+  }
+
+  static String readString( MappedByteBuffer buf ) throws IOException
+  {
+    byte [] bytes = new byte[buf.getInt()];
+
+    buf.get( bytes );
+
+    return new String( bytes, "UTF-8" );
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLClassAssertionAxiom;
+import org.semanticweb.owlapi.model.OWLOntology;
+
+/*
+ * One run of /generate-triples: the super-or-equal relation as N-Triples,
+ *
+ *   <C> super-or-equal <C>        for every class C, and every named individual
+ *   <C> super-or-equal <D>        for every direct subclass D of C
+ *   <C> super-or-equal <i>        for every individual i asserted to be a C
+ *   <W> super-or-equal <C>        for every C SubClassOf regional_part_of/constitutional_part_of some W
+ *
+ * prepare() reads what's needed from the ontology in one pass (under the lock), so that
+ * writing doesn't touch the ontology or reasoner: subclasses come from the taxonomy.  The
+ * classes are then split into partitions which are formatted in parallel and written out
+ * in order, with a bounded number of partitions in flight at a time.
+ *
+ * The progress fields are for /generate-triples/status, and may be read while writing.
+ */
+public class TriplesExport
+{
+  static final String SUPER_OR_EQUAL = "> <http://open-physiology.org/#super-or-equal> <";
+  static final int PARTITION_SIZE = 1024;   // Classes per partition
+
+  final List<OWLClass> classes;
+  final Map<OWLClass,List<String>> individuals;   // IRIs of the named individuals asserted to be in each class
+  final Map<OWLClass,List<String>> wholes;        // IRIs of the classes each class is part of
+  final Taxonomy taxonomy;
+  final String destination;   // File name, or null if streamed to a client
+
+  /*
+   * Progress
+   */
+  final long started = System.currentTimeMillis();
+  final int partitions;
+  final AtomicInteger partitionsWritten = new AtomicInteger();
+  final AtomicLong bytesWritten = new AtomicLong();
+  volatile long finished;   // When writing finished, or 0
+  volatile String error;
+
+  TriplesExport( List<OWLClass> classes, Map<OWLClass,List<String>> individuals, Map<OWLClass,List<String>> wholes, Taxonomy taxonomy, String destination )
+  {
+    this.classes = classes;
+    this.individuals = individuals;
+    this.wholes = wholes;
+    this.taxonomy = taxonomy;
+    this.destination = destination;
+    this.partitions = ( classes.size() + PARTITION_SIZE - 1 ) / PARTITION_SIZE;
+  }
+
+  /*
+   * Must be called with the ontology locked against changes
+   */
+  public static TriplesExport prepare( Set<OWLOntology> importClosure, Taxonomy taxonomy, String destination )
+  {
+    Set<OWLClass> classes = new LinkedHashSet<OWLClass>();
+    Map<OWLClass,List<String>> individuals = new HashMap<OWLClass,List<String>>();
+    Map<OWLClass,List<String>> wholes = new HashMap<OWLClass,List<String>>();
+
+    for ( OWLOntology ont : importClosure )
+    {
+      classes.addAll( ont.getClassesInSignature() );
+
+      for ( OWLClassAssertionAxiom ax : ont.getAxioms( AxiomType.CLASS_ASSERTION ) )
+      {
+        if ( ax.getClassExpression().isAnonymous() || !ax.getIndividual().isNamed() )
+          continue;
+
+        String i = ax.getIndividual().asOWLNamedIndividual().getIRI().toString();
+
+        if ( !i.equals("") )
+          add( individuals, ax.getClassExpression().asOWLClass(), i );
+      }
+    }
+
+    for ( PartOfGraph.PartOf p : PartOfGraph.scan( importClosure ) )
+      add( wholes, p.part, p.whole.toStringID() );
+
+    return new TriplesExport( new ArrayList<OWLClass>( classes ), individuals, wholes, taxonomy, destination );
+  }
+
+  static void add( Map<OWLClass,List<String>> lists, OWLClass c, String x )
+  {
+    List<String> list = lists.get( c );
+
+    if ( list == null )
+    {
+      list = new ArrayList<String>( 2 );
+      lists.put( c, list );
+    }
+
+    list.add( x );
+  }
+
+  /*
+   * Write all the triples to out, formatting up to parallelism partitions at once.  Doesn't
+   * close out.
+   */
+  public void write( OutputStream out, int parallelism ) throws IOException
+  {
+    ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, parallelism ) );
+    ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+    int next = 0;
+
+    try
+    {
+      while ( next < partitions || !inFlight.isEmpty() )
+      {
+        while ( next < partitions && inFlight.size() < 2 * parallelism )
+          inFlight.add( pool.submit( partition( next++ ) ) );
+
+        byte [] bytes = inFlight.removeFirst().get();
+
+        out.write( bytes );
+        bytesWritten.addAndGet( bytes.length );
+        partitionsWritten.incrementAndGet();
+      }
+
+      out.flush();
+      finished = System.currentTimeMillis();
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      throw fail( new IOException( "Interrupted" ) );
+    }
+    catch( ExecutionException e )
+    {
+      throw fail( new IOException( e.getCause() ) );
+    }
+    catch( IOException e )
+    {
+      throw fail( e );
+    }
+    catch( RuntimeException e )
+    {
+      fail( new IOException( e ) );
+      throw e;
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  IOException fail( IOException e )
+  {
+    error = String.valueOf( e.getMessage() );
+    finished = System.currentTimeMillis();
+    return e;
+  }
+
+  /*
+   * The triples of the p'th partition of the classes, in UTF-8
+   */
+  Callable<byte[]> partition( final int p )
+  {
+    return new Callable<byte[]>()
+    {
+      public byte[] call() throws Exception
+      {
+        StringBuilder sb = new StringBuilder( PARTITION_SIZE * 256 );
+        int end = Math.min( classes.size(), ( p + 1 ) * PARTITION_SIZE );
+
+        for ( int i = p * PARTITION_SIZE; i < end; i++ )
+          appendTriples( sb, classes.get( i ) );
+
+        return sb.toString().getBytes( "UTF-8" );
+      }
+    };
+  }
+
+  void appendTriples( StringBuilder sb, OWLClass c )
+  {
+    String cString = c.toStringID();
+
+    for ( String i : listOf( individuals, c ) )
+    {
+      appendTriple( sb, i, i );
+
+      if ( !cString.equals("") )
+        appendTriple( sb, cString, i );
+    }
+
+    if ( cString.equals("") )
+      return;
+
+    appendTriple( sb, cString, cString );
+
+    int id = taxonomy.idOf( c );
+
+    if ( id != -1 )
+    {
+      for ( int sub : taxonomy.children( id ) )
+      {
+        if ( sub != taxonomy.bottom )
+          appendTriple( sb, cString, taxonomy.node( sub ).getRepresentativeElement().toStringID() );
+      }
+    }
+
+    for ( String whole : listOf( wholes, c ) )
+      appendTriple( sb, whole, cString );
+  }
+
+  static List<String> listOf( Map<OWLClass,List<String>> lists, OWLClass c )
+  {
+    List<String> list = lists.get( c );
+
+    return ( list == null ) ? Collections.<String>emptyList() : list;
+  }
+
+  static void appendTriple( StringBuilder sb, String sup, String sub )
+  {
+    sb.append( '<' ).append( sup ).append( SUPER_OR_EQUAL ).append( sub ).append( "> .\n" );
+  }
+
+  public boolean isFinished()
+  {
+    return finished != 0;
+  }
+
+  public String statusJson()
+  {
+    long end = isFinished() ? finished : System.currentTimeMillis();
+
+    return "{\n"
+         + " \"destination\": " + ( destination == null ? "null" : "\"" + Owlkb.escapeJSON( destination ) + "\"" ) + ",\n"
+         + " \"state\": \"" + ( error != null ? "failed" : isFinished() ? "finished" : "running" ) + "\",\n"
+         + ( error != null ? " \"error\": \"" + Owlkb.escapeJSON( error ) + "\",\n" : "" )
+         + " \"classes\": " + classes.size() + ",\n"
+         + " \"partitions\": " + partitions + ",\n"
+         + " \"partitionsWritten\": " + partitionsWritten.get() + ",\n"
+         + " \"bytesWritten\": " + bytesWritten.get() + ",\n"
+         + " \"elapsedMillis\": " + ( end - started ) + "\n"
+         + "}";
+  }
+}
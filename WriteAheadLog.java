@@ -0,0 +1,365 @@
+/*
+ * Owlkb 2.0, part of RICORDO.
+ * On the web: http://open-physiology.org
+ *
+ * Copyright 2014 The Farr Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Append-only log of changes made to the ontology since it was last saved, so that a
+ * change can be made durable by appending a line to a file instead of re-saving the
+ * whole ontology.
+ *
+ * Each record is one line of tab-separated fields.  Records are written and fsynced by a
+ * single background thread: every record queued while one fsync is in progress goes to
+ * disk together in the next one (group commit).  Appending never blocks; sync() waits
+ * until everything appended so far is on disk.
+ *
+ * If a write or fsync fails, the file may end with part of a record, so nothing more is
+ * written to it: sync() fails from then on, until the ontology has been saved and the log
+ * truncated.
+ */
+public class WriteAheadLog implements Runnable
+{
+  final File file;
+  final FileChannel channel;
+  final Object fileMutex = new Object();
+
+  List<String> queue = new ArrayList<String>();
+  long appended;        // Number of records appended (ever)
+  long flushed;         // Number of those records the background thread has finished with
+  long durable;         // Number of those records known to be on disk
+  IOException failure;  // Why the last write failed, or null
+  long sinceTruncate;   // Number of records in the file, counting those read at startup
+  boolean closed;
+
+  public WriteAheadLog( File file ) throws IOException
+  {
+    this.file = file;
+    this.sinceTruncate = readRecords( file ).size();
+    this.channel = new FileOutputStream( file, true ).getChannel();
+
+    /*
+     * Drop any record cut short by a crash, so the next record starts on a line of its own
+     */
+    channel.truncate( completeLength( file ) );
+
+    Thread flusher = new Thread( this, "wal-flusher" );
+    flusher.setDaemon( true );
+    flusher.start();
+  }
+
+  /*
+   * Queue a record for writing; returns immediately
+   */
+  public synchronized void append( String... fields )
+  {
+    StringBuilder sb = new StringBuilder();
+
+    for ( int i = 0; i < fields.length; i++ )
+    {
+      if ( i > 0 )
+        sb.append( '\t' );
+
+      sb.append( escape( fields[i] ) );
+    }
+
+    sb.append( '\n' );
+
+    queue.add( sb.toString() );
+    appended++;
+    sinceTruncate++;
+    notifyAll();
+  }
+
+  /*
+   * Wait until every record appended before this call has been written and fsynced.
+   * Throws if any of them couldn't be.
+   */
+  public synchronized void sync() throws IOException
+  {
+    long target = appended;
+
+    if ( !drain( target ) )
+      throw new IOException( "Interrupted while waiting for " + file + " to be written" );
+
+    if ( durable < target )
+      throw new IOException( "Could not write to " + file + ( failure != null ? ": " + failure.getMessage() : " (closed)" ) );
+  }
+
+  /*
+   * Wait until the background thread has finished with the first target records, whether
+   * or not it managed to write them.  Returns false if interrupted.
+   */
+  synchronized boolean drain( long target )
+  {
+    while ( flushed < target && !closed )
+    {
+      try
+      {
+        wait();
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /*
+   * Whether there are records which a fresh save of the ontology would make redundant
+   */
+  public synchronized boolean hasRecords()
+  {
+    return sinceTruncate > 0;
+  }
+
+  /*
+   * Empty the log, after the ontology has been saved with all the changes it records.
+   * The caller must make sure nothing is appended concurrently.
+   */
+  public void truncate() throws IOException
+  {
+    long target;
+
+    synchronized( this )
+    {
+      target = appended;
+    }
+
+    if ( !drain( target ) )
+      throw new IOException( "Interrupted while waiting for " + file + " to be written" );
+
+    synchronized( fileMutex )
+    {
+      channel.truncate( 0 );
+      channel.force( true );
+    }
+
+    /*
+     * The saved ontology has whatever a failed write lost, and the partial record is gone
+     */
+    synchronized( this )
+    {
+      sinceTruncate = 0;
+      durable = target;
+      failure = null;
+    }
+  }
+
+  public synchronized void close()
+  {
+    drain( appended );
+
+    closed = true;
+    notifyAll();
+  }
+
+  public void run()
+  {
+    while ( true )
+    {
+      List<String> batch;
+      long upTo;
+
+      synchronized( this )
+      {
+        while ( queue.isEmpty() && !closed )
+        {
+          try
+          {
+            wait();
+          }
+          catch( InterruptedException e )
+          {
+            return;
+          }
+        }
+
+        if ( queue.isEmpty() )
+          return;
+
+        batch = queue;
+        queue = new ArrayList<String>();
+        upTo = appended;
+      }
+
+      IOException failed = null;
+
+      if ( !hasFailed() )
+      {
+        StringBuilder sb = new StringBuilder();
+        for ( String record : batch )
+          sb.append( record );
+
+        try
+        {
+          synchronized( fileMutex )
+          {
+            ByteBuffer buf = ByteBuffer.wrap( sb.toString().getBytes( "UTF-8" ) );
+
+            while ( buf.hasRemaining() )
+              channel.write( buf );
+
+            channel.force( false );
+          }
+        }
+        catch( IOException e )
+        {
+          Owlkb.logString( "Could not write to " + file + ": " + e.getMessage() + "; changes will not be acknowledged until the ontology is saved" );
+          failed = e;
+        }
+      }
+
+      synchronized( this )
+      {
+        if ( failed != null )
+          failure = failed;
+        else
+        if ( failure == null )
+          durable = upTo;
+
+        flushed = upTo;
+        notifyAll();
+      }
+    }
+  }
+
+  synchronized boolean hasFailed()
+  {
+    return failure != null;
+  }
+
+  /*
+   * All complete records in the given log file, as arrays of fields
+   */
+  public static List<String[]> readRecords( File file ) throws IOException
+  {
+    List<String[]> records = new ArrayList<String[]>();
+
+    if ( !file.exists() )
+      return records;
+
+    BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+    StringBuilder content = new StringBuilder();
+    char [] chunk = new char[8192];
+    int n;
+
+    while ( (n = reader.read( chunk )) != -1 )
+      content.append( chunk, 0, n );
+
+    reader.close();
+
+    /*
+     * A record without its newline was cut short by a crash, so it was never acknowledged
+     */
+    int start = 0, end;
+
+    while ( (end = content.indexOf( "\n", start )) != -1 )
+    {
+      String line = content.substring( start, end );
+      start = end + 1;
+
+      if ( line.equals("") )
+        continue;
+
+      String [] fields = line.split( "\t", -1 );
+
+      for ( int i = 0; i < fields.length; i++ )
+        fields[i] = unescape( fields[i] );
+
+      records.add( fields );
+    }
+
+    return records;
+  }
+
+  /*
+   * Length of the file up to and including its last newline
+   */
+  static long completeLength( File file ) throws IOException
+  {
+    java.io.RandomAccessFile raf = new java.io.RandomAccessFile( file, "r" );
+
+    try
+    {
+      long pos = raf.length();
+
+      while ( pos > 0 )
+      {
+        raf.seek( pos - 1 );
+
+        if ( raf.read() == '\n' )
+          break;
+
+        pos--;
+      }
+
+      return pos;
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  static String escape( String x )
+  {
+    return x.replace( "\\", "\\\\" ).replace( "\t", "\\t" ).replace( "\n", "\\n" ).replace( "\r", "\\r" );
+  }
+
+  static String unescape( String x )
+  {
+    StringBuilder sb = new StringBuilder( x.length() );
+
+    for ( int i = 0; i < x.length(); i++ )
+    {
+      char c = x.charAt(i);
+
+      if ( c != '\\' || i+1 == x.length() )
+      {
+        sb.append( c );
+        continue;
+      }
+
+      char next = x.charAt(++i);
+
+      if ( next == 't' )
+        sb.append( '\t' );
+      else if ( next == 'n' )
+        sb.append( '\n' );
+      else if ( next == 'r' )
+        sb.append( '\r' );
+      else
+        sb.append( next );
+    }
+
+    return sb.toString();
+  }
+}